@@ -0,0 +1,125 @@
+package dependencybuilder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/***
+ * Local on-disk cache of package outputs, addressed by fingerprint. A fingerprint is the SHA-256 of
+ * the package's name, its inputs and the hashes of its dependencies' outputs, so it changes when the
+ * package or anything it is built against changes, but not when a dependency is rebuilt into the same
+ * output. Each entry is one file named after the fingerprint, written to a temporary file and moved
+ * into place, so a crash never leaves a partial entry. The cache only saves work: a failure to read or
+ * write an entry makes the package build as if it were not cached.
+ */
+class BuildCache {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final ThreadLocal<MessageDigest> SHA_256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    });
+
+    private final Path directory;
+
+    BuildCache(Path directory) {
+        this.directory = directory;
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Output cached under the fingerprint, or null.
+     */
+    byte[] get(byte[] fingerprint) {
+        try {
+            return Files.readAllBytes(directory.resolve(toHex(fingerprint)));
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            System.out.println(e);
+            return null;
+        }
+    }
+
+    void put(byte[] fingerprint, byte[] output) {
+        String name = toHex(fingerprint);
+        Path temporary = directory.resolve(name + "." + Thread.currentThread().getId() + ".tmp");
+        try {
+            Files.write(temporary, output);
+            Files.move(temporary, directory.resolve(name), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println(e);
+        }
+    }
+
+    /**
+     * Dependencies are taken in no particular order, so they are sorted by name first. Each output hash
+     * is paired with its dependency's name, so two dependencies swapping outputs is a different input.
+     */
+    static byte[] fingerprint(IIncrementalPackage pkg, String[] dependencyNames, byte[][] dependencyOutputs) {
+        Integer[] order = new Integer[dependencyNames.length];
+        for (int i=0; i<order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> {
+            int byName = dependencyNames[a].compareTo(dependencyNames[b]);
+            return byName != 0 ? byName : compare(dependencyOutputs[a], dependencyOutputs[b]);
+        });
+        MessageDigest digest = SHA_256.get();
+        byte[] name = pkg.name().getBytes(StandardCharsets.UTF_8);
+        byte[] inputs = pkg.inputs();
+        // lengths keep the name and the inputs from running into each other
+        digest.update(lengthOf(name));
+        digest.update(name);
+        digest.update(lengthOf(inputs));
+        digest.update(inputs);
+        for (int i : order) {
+            byte[] dependency = dependencyNames[i].getBytes(StandardCharsets.UTF_8);
+            digest.update(lengthOf(dependency));
+            digest.update(dependency);
+            digest.update(dependencyOutputs[i]);
+        }
+        return digest.digest();
+    }
+
+    static byte[] hash(byte[] output) {
+        return SHA_256.get().digest(output);
+    }
+
+    private static byte[] lengthOf(byte[] bytes) {
+        int length = bytes.length;
+        return new byte[] {(byte) (length >>> 24), (byte) (length >>> 16), (byte) (length >>> 8), (byte) length};
+    }
+
+    private static int compare(byte[] a, byte[] b) {
+        for (int i=0; i<Math.min(a.length, b.length); i++) {
+            int diff = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (diff != 0)
+                return diff;
+        }
+        return a.length - b.length;
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i=0; i<bytes.length; i++) {
+            hex[2 * i] = HEX[(bytes[i] >>> 4) & 0xF];
+            hex[2 * i + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(hex);
+    }
+}
@@ -0,0 +1,246 @@
+package dependencybuilder;
+
+import java.util.Arrays;
+
+/***
+ * Package graph in compressed sparse row form: the dependents of package p are targets[offsets[p]]
+ * up to targets[offsets[p + 1]], exclusive. Two int arrays hold the whole graph at four bytes per
+ * dependency, where a List<Integer> per package costs a boxed Integer and a reference per dependency
+ * and a list per package. Packages are numbered in the order they are added. The graph is checked for
+ * cycles when built and keeps the topological order found doing so.
+ */
+class BuildGraph {
+
+    private static final int MAX_CYCLE_SHOWN = 10;
+
+    private final Runnable[] jobs;
+    private final int[] offsets;
+    private final int[] targets;
+    private final int[] order;
+
+    private BuildGraph(Runnable[] jobs, int[] offsets, int[] targets, int[] order) {
+        this.jobs = jobs;
+        this.offsets = offsets;
+        this.targets = targets;
+        this.order = order;
+    }
+
+    public static Builder builder() {
+        return new Builder(16, 16);
+    }
+
+    /**
+     * A builder sized for the expected graph, so that it does not grow while packages stream in.
+     */
+    public static Builder builder(int expectedPackages, int expectedDependencies) {
+        return new Builder(expectedPackages, expectedDependencies);
+    }
+
+    int size() {
+        return jobs.length;
+    }
+
+    int dependencyCount() {
+        return targets.length;
+    }
+
+    Runnable job(int pkg) {
+        return jobs[pkg];
+    }
+
+    /**
+     * Index in targets of the first dependent of the package; its dependents end where the next
+     * package's begin.
+     */
+    int firstDependent(int pkg) {
+        return offsets[pkg];
+    }
+
+    int endOfDependents(int pkg) {
+        return offsets[pkg + 1];
+    }
+
+    int dependent(int index) {
+        return targets[index];
+    }
+
+    int[] inDegrees() {
+        return inDegrees(jobs.length, targets);
+    }
+
+    private static int[] inDegrees(int n, int[] targets) {
+        int[] inDegree = new int[n];
+        for (int target : targets) {
+            inDegree[target]++;
+        }
+        return inDegree;
+    }
+
+    /**
+     * Every package after all of its dependencies. Shared, not to be modified.
+     */
+    int[] topologicalOrder() {
+        return order;
+    }
+
+    /**
+     * Dependencies in the same form: for package p, sources[result[p]] up to sources[result[p + 1]].
+     * Returns the offsets and fills sources, which must hold dependencyCount() entries.
+     */
+    int[] reverse(int[] sources) {
+        int n = jobs.length;
+        int[] reverseOffsets = new int[n + 1];
+        for (int target : targets) {
+            reverseOffsets[target + 1]++;
+        }
+        for (int i=0; i<n; i++) {
+            reverseOffsets[i + 1] += reverseOffsets[i];
+        }
+        int[] cursor = Arrays.copyOf(reverseOffsets, n);
+        for (int pkg=0; pkg<n; pkg++) {
+            for (int k=offsets[pkg]; k<offsets[pkg + 1]; k++) {
+                sources[cursor[targets[k]]++] = pkg;
+            }
+        }
+        return reverseOffsets;
+    }
+
+    /**
+     * Packages and dependencies are streamed in as plain ints; nothing is boxed and no per package
+     * object is made. build() sorts the dependencies into CSR form with a counting sort.
+     */
+    public static class Builder {
+
+        private Runnable[] jobs;
+        private int size;
+        private int[] parents;
+        private int[] children;
+        private int nDependencies;
+
+        private Builder(int expectedPackages, int expectedDependencies) {
+            if (expectedPackages < 0 || expectedDependencies < 0)
+                throw new RuntimeException("Invalid input");
+            this.jobs = new Runnable[Math.max(expectedPackages, 1)];
+            this.parents = new int[Math.max(expectedDependencies, 1)];
+            this.children = new int[Math.max(expectedDependencies, 1)];
+        }
+
+        /**
+         * Returns the new package's id.
+         */
+        public int addPackage(Runnable job) {
+            if (job == null)
+                throw new RuntimeException("Invalid input");
+            if (size == jobs.length)
+                jobs = Arrays.copyOf(jobs, size * 2);
+            jobs[size] = job;
+            return size++;
+        }
+
+        /**
+         * The child package is built after the parent.
+         */
+        public Builder addDependency(int parent, int child) {
+            if (parent < 0 || parent >= size || child < 0 || child >= size)
+                throw new RuntimeException("Invalid input");
+            if (nDependencies == parents.length) {
+                parents = Arrays.copyOf(parents, nDependencies * 2);
+                children = Arrays.copyOf(children, nDependencies * 2);
+            }
+            parents[nDependencies] = parent;
+            children[nDependencies] = child;
+            nDependencies++;
+            return this;
+        }
+
+        /**
+         * Throws if the dependencies form a cycle, naming the packages on it. A builder builds once.
+         */
+        public BuildGraph build() {
+            int n = size;
+            int[] offsets = new int[n + 1];
+            for (int i=0; i<nDependencies; i++) {
+                offsets[parents[i] + 1]++;
+            }
+            for (int i=0; i<n; i++) {
+                offsets[i + 1] += offsets[i];
+            }
+            int[] targets = new int[nDependencies];
+            int[] cursor = Arrays.copyOf(offsets, n);
+            for (int i=0; i<nDependencies; i++) {
+                targets[cursor[parents[i]]++] = children[i];
+            }
+            // the builder's copies are no longer needed, and can be collected while the build runs
+            parents = null;
+            children = null;
+
+            int[] order = topologicalOrder(offsets, targets, inDegrees(n, targets));
+            return new BuildGraph(Arrays.copyOf(jobs, n), offsets, targets, order);
+        }
+
+        private static int[] topologicalOrder(int[] offsets, int[] targets, int[] inDegree) {
+            int n = inDegree.length;
+            int[] order = new int[n];
+            int size = 0;
+            for (int i=0; i<n; i++) {
+                if (inDegree[i] == 0)
+                    order[size++] = i;
+            }
+            for (int head=0; head<size; head++) {
+                int pkg = order[head];
+                for (int k=offsets[pkg]; k<offsets[pkg + 1]; k++) {
+                    if (--inDegree[targets[k]] == 0)
+                        order[size++] = targets[k];
+                }
+            }
+            if (size < n)
+                throw new RuntimeException("Dependency cycle: " + findCycle(offsets, targets, inDegree));
+            return order;
+        }
+
+        /**
+         * Depth first search of the packages the topological sort could not reach, all of them on or
+         * after a cycle, for an edge back to a package on the current path.
+         */
+        private static String findCycle(int[] offsets, int[] targets, int[] inDegree) {
+            int n = inDegree.length;
+            // 0 unvisited, 1 on the path, 2 done
+            byte[] state = new byte[n];
+            int[] path = new int[n];
+            int[] cursor = Arrays.copyOf(offsets, n);
+            for (int start=0; start<n; start++) {
+                if (inDegree[start] == 0 || state[start] != 0)
+                    continue;
+                int depth = 0;
+                path[depth++] = start;
+                state[start] = 1;
+                while (depth > 0) {
+                    int pkg = path[depth - 1];
+                    if (cursor[pkg] == offsets[pkg + 1]) {
+                        state[pkg] = 2;
+                        depth--;
+                        continue;
+                    }
+                    int next = targets[cursor[pkg]++];
+                    if (state[next] == 0) {
+                        state[next] = 1;
+                        path[depth++] = next;
+                    } else if (state[next] == 1) {
+                        int from = depth - 1;
+                        while (path[from] != next) {
+                            from--;
+                        }
+                        StringBuilder cycle = new StringBuilder();
+                        for (int i=from; i<depth && i-from<MAX_CYCLE_SHOWN; i++) {
+                            cycle.append(path[i]).append(" -> ");
+                        }
+                        if (depth - from > MAX_CYCLE_SHOWN)
+                            cycle.append("... -> ");
+                        return cycle.append(next).toString();
+                    }
+                }
+            }
+            return "none found";
+        }
+    }
+}
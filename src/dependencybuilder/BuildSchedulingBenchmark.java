@@ -0,0 +1,72 @@
+package dependencybuilder;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+
+/***
+ * Makespan of FIFO and critical path scheduling on random package graphs, against the lower bound
+ * max(critical path, total work / workers). Each graph has one long chain of packages, as a core
+ * library and everything stacked on it, among many short packages with up to two dependencies each.
+ * Packages sleep for their duration, like a compiler waiting on I/O, and critical path scheduling is
+ * given their exact durations as estimates.
+ * Run with: java dependencybuilder.BuildSchedulingBenchmark
+ */
+public class BuildSchedulingBenchmark {
+
+    private static final int PACKAGES = 300;
+    private static final int CHAIN_LENGTH = 25;
+    private static final long CHAIN_PACKAGE_IN_MS = 20;
+    private static final int MAX_PACKAGE_IN_MS = 40;
+    private static final int MAX_PARENTS = 2;
+
+    public static void main(String[] args) throws InterruptedException, ExecutionException {
+        System.out.printf("%d packages, a chain of %d x %d ms, others 1-%d ms; %d workers%n",
+                PACKAGES, CHAIN_LENGTH, CHAIN_PACKAGE_IN_MS, MAX_PACKAGE_IN_MS, PackageBuilder.nThread);
+        System.out.printf("%-6s %-14s %12s %14s %10s%n", "graph", "mode", "makespan ms", "lower bound ms", "of bound");
+        for (int seed=1; seed<=3; seed++) {
+            for (SchedulingMode mode : SchedulingMode.values()) {
+                Map<Runnable, List<Runnable>> jobs = randomGraph(new Random(seed));
+                BuildReport report = PackageBuilder.getInstance().build(jobs, PACKAGES, mode).get();
+                System.out.printf("%-6d %-14s %12d %14d %9.0f%%%n", seed, mode,
+                        report.makespanInNanos / 1_000_000, report.lowerBoundInNanos() / 1_000_000,
+                        100.0 * report.makespanInNanos / report.lowerBoundInNanos());
+            }
+        }
+        System.exit(0);
+    }
+
+    private static Map<Runnable, List<Runnable>> randomGraph(Random random) {
+        Runnable[] packages = new Runnable[PACKAGES];
+        Map<Runnable, List<Runnable>> jobs = new HashMap<>();
+        for (int i=0; i<PACKAGES; i++) {
+            long durationInMs = i < CHAIN_LENGTH ? CHAIN_PACKAGE_IN_MS : 1 + random.nextInt(MAX_PACKAGE_IN_MS);
+            packages[i] = () -> sleep(durationInMs);
+            PackageBuilder.getInstance().estimateDuration(packages[i], durationInMs);
+            jobs.put(packages[i], new ArrayList<>());
+        }
+        for (int i=1; i<CHAIN_LENGTH; i++) {
+            jobs.get(packages[i - 1]).add(packages[i]);
+        }
+        for (int i=CHAIN_LENGTH+1; i<PACKAGES; i++) {
+            int parents = random.nextInt(MAX_PARENTS + 1);
+            for (int j=0; j<parents; j++) {
+                List<Runnable> children = jobs.get(packages[CHAIN_LENGTH + random.nextInt(i - CHAIN_LENGTH)]);
+                if (!children.contains(packages[i]))
+                    children.add(packages[i]);
+            }
+        }
+        return jobs;
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
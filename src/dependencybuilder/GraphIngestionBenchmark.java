@@ -0,0 +1,124 @@
+package dependencybuilder;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+
+/***
+ * Ingestion time and retained heap of a monorepo sized graph: 500k packages with about 3M
+ * dependencies, each package depending on up to twelve of the thousand declared before it. Compared:
+ * the boxed form the builder used to make, a List<Integer> of dependents per package plus HashMaps
+ * from index to task and from job to task, and the CSR graph streamed through BuildGraph.Builder,
+ * cycle check included. The jobs themselves are allocated up front and not counted. Finally the CSR
+ * graph is built, every package a no-op, to time the dispatch of that many tasks.
+ * Run with: java -Xmx1g dependencybuilder.GraphIngestionBenchmark
+ */
+public class GraphIngestionBenchmark {
+
+    private static final int PACKAGES = 500_000;
+    private static final int MAX_PARENTS = 12;
+    private static final int PARENT_WINDOW = 1000;
+    private static final int RUNS = 3;
+
+    public static void main(String[] args) throws InterruptedException, ExecutionException {
+        Runnable[] jobs = new Runnable[PACKAGES];
+        for (int i=0; i<PACKAGES; i++) {
+            jobs[i] = noOp();
+        }
+
+        long baseline = usedHeap();
+        Object[] keep = new Object[1];
+        long boxedMs = Long.MAX_VALUE;
+        for (int run=0; run<RUNS; run++) {
+            keep[0] = null;
+            long start = System.nanoTime();
+            keep[0] = boxed(jobs);
+            boxedMs = Math.min(boxedMs, (System.nanoTime() - start) / 1_000_000);
+        }
+        long boxedBytes = usedHeap() - baseline;
+
+        keep[0] = null;
+        baseline = usedHeap();
+        BuildGraph graph = null;
+        long csrMs = Long.MAX_VALUE;
+        for (int run=0; run<RUNS; run++) {
+            graph = null;
+            long start = System.nanoTime();
+            graph = csr(jobs);
+            csrMs = Math.min(csrMs, (System.nanoTime() - start) / 1_000_000);
+        }
+        long csrBytes = usedHeap() - baseline;
+
+        System.out.printf("%d packages, %d dependencies%n", graph.size(), graph.dependencyCount());
+        System.out.printf("%-30s %12s %12s%n", "representation", "ingest ms", "heap MB");
+        System.out.printf("%-30s %12d %12d%n", "List<Integer>[] + HashMaps", boxedMs, boxedBytes >> 20);
+        System.out.printf("%-30s %12d %12d%n", "CSR int[], cycle checked", csrMs, csrBytes >> 20);
+
+        BuildReport report = PackageBuilder.getInstance().build(graph).get();
+        System.out.printf("built %d no-op packages in %d ms%n", report.nTasks, report.makespanInNanos / 1_000_000);
+        PackageBuilder.getInstance().shutdown();
+    }
+
+    /**
+     * What PackageBuilder.build made of the graph before it moved to BuildGraph; Object stands in for Task.
+     */
+    private static Object[] boxed(Runnable[] jobs) {
+        @SuppressWarnings({"rawtypes", "unchecked"})
+        List<Integer>[] graph = new List[PACKAGES];
+        Map<Integer, Object> taskIndexMap = new HashMap<>();
+        Map<Runnable, Object> runnableToTaskMap = new HashMap<>();
+        for (int i=0; i<PACKAGES; i++) {
+            graph[i] = new ArrayList<>();
+            Object task = new Object();
+            taskIndexMap.put(i, task);
+            runnableToTaskMap.put(jobs[i], task);
+        }
+        Random random = new Random(1);
+        for (int child=1; child<PACKAGES; child++) {
+            int parents = random.nextInt(MAX_PARENTS + 1);
+            for (int j=0; j<parents; j++) {
+                graph[parentOf(child, random)].add(child);
+            }
+        }
+        return new Object[] {graph, taskIndexMap, runnableToTaskMap};
+    }
+
+    private static BuildGraph csr(Runnable[] jobs) {
+        BuildGraph.Builder builder = BuildGraph.builder(PACKAGES, PACKAGES * MAX_PARENTS / 2);
+        for (int i=0; i<PACKAGES; i++) {
+            builder.addPackage(jobs[i]);
+        }
+        Random random = new Random(1);
+        for (int child=1; child<PACKAGES; child++) {
+            int parents = random.nextInt(MAX_PARENTS + 1);
+            for (int j=0; j<parents; j++) {
+                builder.addDependency(parentOf(child, random), child);
+            }
+        }
+        return builder.build();
+    }
+
+    private static int parentOf(int child, Random random) {
+        return child - 1 - random.nextInt(Math.min(child, PARENT_WINDOW));
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i=0; i<3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * A new job on every call: a lambda capturing nothing would be one shared instance.
+     */
+    private static Runnable noOp() {
+        int[] builds = new int[1];
+        return () -> builds[0]++;
+    }
+}
@@ -0,0 +1,127 @@
+package dependencybuilder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Stream;
+
+/***
+ * Incremental builds of a synthetic 10k package graph with the on-disk build cache. Each package
+ * depends on up to three of the packages declared shortly before it, and takes about a millisecond to
+ * build, like a compiler waiting on I/O. Its output depends only on its own source, as a library's
+ * interface rarely changes with its implementation, so a changed package rebuilds its direct
+ * dependents and the rebuild stops there. Timed: a build without the cache, a build filling an empty
+ * cache, a build with nothing changed, and one with 1% of the packages changed.
+ * Run with: java dependencybuilder.IncrementalBuildBenchmark
+ */
+public class IncrementalBuildBenchmark {
+
+    private static final int PACKAGES = 10_000;
+    private static final int MAX_PARENTS = 3;
+    private static final int PARENT_WINDOW = 500;
+    private static final double CHANGED = 0.01;
+
+    public static void main(String[] args) throws IOException, InterruptedException, ExecutionException {
+        Random random = new Random(1);
+        SyntheticPackage[] packages = new SyntheticPackage[PACKAGES];
+        Map<Runnable, List<Runnable>> jobs = new HashMap<>();
+        for (int i=0; i<PACKAGES; i++) {
+            packages[i] = new SyntheticPackage("package-" + i);
+            jobs.put(packages[i], new ArrayList<>());
+        }
+        for (int i=1; i<PACKAGES; i++) {
+            int parents = random.nextInt(MAX_PARENTS + 1);
+            for (int j=0; j<parents; j++) {
+                int parent = Math.max(0, i - 1 - random.nextInt(PARENT_WINDOW));
+                List<Runnable> children = jobs.get(packages[parent]);
+                if (!children.contains(packages[i]))
+                    children.add(packages[i]);
+            }
+        }
+
+        Path directory = Files.createTempDirectory("build-cache");
+        BuildCache cache = new BuildCache(directory);
+        System.out.printf("%d packages, %d workers, cache in %s%n", PACKAGES, PackageBuilder.nThread, directory);
+        System.out.printf("%-24s %8s %12s %10s%n", "build", "built", "from cache", "ms");
+
+        BuildReport full = run("no cache", jobs, null);
+        run("empty cache", jobs, cache);
+        run("nothing changed", jobs, cache);
+        int nChanged = (int) (PACKAGES * CHANGED);
+        for (int i=0; i<nChanged; i++) {
+            packages[random.nextInt(PACKAGES)].edit();
+        }
+        BuildReport incremental = run(nChanged + " packages changed", jobs, cache);
+        System.out.printf("speedup over a full build: %.1fx%n",
+                (double) full.makespanInNanos / incremental.makespanInNanos);
+
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+        System.exit(0);
+    }
+
+    private static BuildReport run(String name, Map<Runnable, List<Runnable>> jobs, BuildCache cache)
+            throws InterruptedException, ExecutionException {
+        BuildReport report = PackageBuilder.getInstance().useCache(cache).build(jobs, PACKAGES).get();
+        System.out.printf("%-24s %8d %12d %10d%n", name, report.nTasks - report.nFromCache, report.nFromCache,
+                report.makespanInNanos / 1_000_000);
+        return report;
+    }
+}
+
+class SyntheticPackage implements IIncrementalPackage {
+
+    private final String name;
+    private volatile byte[] source;
+    private volatile byte[] output;
+    private int version;
+
+    SyntheticPackage(String name) {
+        this.name = name;
+        this.source = (name + " v0").getBytes(StandardCharsets.UTF_8);
+    }
+
+    void edit() {
+        version++;
+        source = (name + " v" + version).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String name() {
+        return name;
+    }
+
+    @Override
+    public byte[] inputs() {
+        return source;
+    }
+
+    @Override
+    public byte[] output() {
+        return output;
+    }
+
+    @Override
+    public void restore(byte[] output) {
+        this.output = output;
+    }
+
+    @Override
+    public void run() {
+        try {
+            Thread.sleep(1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        output = BuildCache.hash(source);
+    }
+}
@@ -1,16 +1,19 @@
 package dependencybuilder;
 
 import java.util.*;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 public class PackageBuilderDesign {
 
-    public static void main(String[] args) {
-        // 3->1->2,5    4->6
+    public static void main(String[] args) throws InterruptedException {
+        // 3->1->2,5    4->5,6
         Runnable job1 = () -> {
             try {
                 Thread.sleep(5000);
@@ -36,9 +39,11 @@ public class PackageBuilderDesign {
         jobs.get(job3).add(job1);
 
         jobs.putIfAbsent(job4, new ArrayList<>());
+        jobs.get(job4).add(job5);
         jobs.get(job4).add(job6);
 
-        PackageBuilder.getInstance().build(jobs, 6);
+        CompletableFuture<Void> project1 = PackageBuilder.getInstance().build(jobs, 6)
+                .thenAccept(report -> System.out.println("Project1 | " + report));
 
         Runnable job21 = () -> {
             try {
@@ -60,203 +65,550 @@ public class PackageBuilderDesign {
 
         jobs2.putIfAbsent(job21, new ArrayList<>());
         jobs2.get(job21).add(job22);
-        PackageBuilder.getInstance().build(jobs2, 2);
-
+        PackageBuilder.getInstance().estimateDuration(job21, 2000);
+        PackageBuilder.getInstance().estimateDuration(job22, 3000);
+        CompletableFuture<Void> project2 = PackageBuilder.getInstance().build(jobs2, 2, SchedulingMode.CRITICAL_PATH)
+                .thenAccept(report -> System.out.println("Project2 | " + report));
+
+        CompletableFuture.allOf(project1, project2).join();
+        PackageBuilder.getInstance().shutdown();
+        PackageBuilder.getInstance().awaitTermination(1000);
     }
 }
 
+/**
+ * All builds share one bounded work stealing pool. Each running build may keep at most its fair share
+ * of the workers busy, so a large build cannot hold back a small one started after it. A build is set
+ * up on the caller's thread, so it counts against the others' shares from the moment build returns.
+ */
 class PackageBuilder {
 
+    static final int nThread = 10;
+
     private static final PackageBuilder INSTANCE = new PackageBuilder();
-    private final Executor executor;
+    private final ForkJoinPool pool;
+    private final AtomicInteger activeBuilds;
+    // estimated, then measured, duration of each job in ns, for critical path scheduling. Weakly keyed,
+    // so a job the caller no longer holds takes its entry with it
+    private final Map<Runnable, Long> durations;
+    private volatile BuildCache cache;
+
     private PackageBuilder() {
-        this.executor = Executors.newFixedThreadPool(10);
+        // FIFO worker queues, so that of the tasks a worker dispatched the earliest ready runs first
+        this.pool = new ForkJoinPool(nThread, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+        this.activeBuilds = new AtomicInteger();
+        this.durations = Collections.synchronizedMap(new WeakHashMap<>());
     }
 
     public static synchronized PackageBuilder getInstance() {
         return INSTANCE;
     }
 
-    public void build(Map<Runnable, List<Runnable>> jobs, int nPackages) {
+    /**
+     * Expected duration of a job that has not been built yet; once built, its measured duration is used.
+     */
+    public void estimateDuration(Runnable job, long durationInMs) {
+        if (job == null || durationInMs < 0)
+            throw new RuntimeException("Invalid input");
+        durations.put(job, TimeUnit.MILLISECONDS.toNanos(durationInMs));
+    }
+
+    /**
+     * Builds started from now on skip every IIncrementalPackage found in the cache; null builds everything.
+     */
+    public PackageBuilder useCache(BuildCache cache) {
+        this.cache = cache;
+        return this;
+    }
+
+    public CompletableFuture<BuildReport> build(Map<Runnable, List<Runnable>> jobs, int nPackages) {
+        return build(jobs, nPackages, SchedulingMode.FIFO);
+    }
 
-        List<Integer>[] graph = new List[nPackages];
-        Map<Integer, Task> taskIndexMap = new HashMap<>();
-        Map<Runnable, Task> runnableToTaskMap = new HashMap<>();
+    /**
+     * Each key is built before the jobs listed for it. nPackages is the expected number of distinct jobs.
+     */
+    public CompletableFuture<BuildReport> build(Map<Runnable, List<Runnable>> jobs, int nPackages,
+                                                SchedulingMode mode) {
 
-        // init the graph
-        for (int i=0; i<nPackages; i++) {
-            graph[i] = new ArrayList<>();
+        int nDependencies = 0;
+        for (List<Runnable> children : jobs.values()) {
+            nDependencies += children.size();
         }
+        BuildGraph.Builder graph = BuildGraph.builder(nPackages, nDependencies);
+        Map<Runnable, Integer> ids = new HashMap<>(nPackages * 2);
 
-        int counter = 0;
         for (Map.Entry<Runnable, List<Runnable>> entry: jobs.entrySet()) {
-            Runnable key = entry.getKey();
-            List<Runnable> children = entry.getValue();
-
-            Task keyTask = null;
-            if (!runnableToTaskMap.containsKey(key)) {
-                keyTask = new Task(counter, key);
-                runnableToTaskMap.put(key, keyTask);
-                taskIndexMap.put(counter, keyTask);
-                counter++;
-            } else {
-                keyTask = runnableToTaskMap.get(key);
-            }
-
-            for (Runnable child: children) {
-                Task childTask = null;
-                if (!runnableToTaskMap.containsKey(child)) {
-                    childTask = new Task(counter, child);
-                    runnableToTaskMap.put(child, childTask);
-                    taskIndexMap.put(counter, childTask);
-                    counter++;
-                } else {
-                    childTask = runnableToTaskMap.get(child);
-                }
-
-                graph[keyTask.id].add(childTask.id);
+            int parent = idOf(entry.getKey(), ids, graph);
+            for (Runnable child: entry.getValue()) {
+                graph.addDependency(parent, idOf(child, ids, graph));
             }
         }
-
-        executor.execute(() -> {
-            PackageBuilderHandler builder = new PackageBuilderHandler();
-            builder.addPackageGraph(graph, taskIndexMap);
-        });
+        return build(graph.build(), mode);
     }
-}
 
-class PackageBuilderHandler {
+    public CompletableFuture<BuildReport> build(BuildGraph graph) {
+        return build(graph, SchedulingMode.FIFO);
+    }
 
-    private final Queue<Task> queue;
-    private final Lock lock;
-    private final Condition entryAdded;
+    public CompletableFuture<BuildReport> build(BuildGraph graph, SchedulingMode mode) {
+        long startNanos = System.nanoTime();
+        CompletableFuture<BuildReport> done = new CompletableFuture<>();
+        activeBuilds.incrementAndGet();
+        // however the build ends, cancelled by the caller included, it gives up its share
+        done.whenComplete((report, e) -> activeBuilds.decrementAndGet());
+        PackageBuilderHandler builder = new PackageBuilderHandler(pool, activeBuilds, mode, durations, cache,
+                startNanos, done);
+        try {
+            builder.addPackageGraph(graph);
+        } catch (RuntimeException e) {
+            // refused by a pool shut down, say
+            done.completeExceptionally(e);
+        }
+        return done;
+    }
 
-    private List<Integer>[] graph;
+    private static int idOf(Runnable job, Map<Runnable, Integer> ids, BuildGraph.Builder graph) {
+        Integer id = ids.get(job);
+        if (id == null) {
+            id = graph.addPackage(job);
+            ids.put(job, id);
+        }
+        return id;
+    }
 
-    private Map<Integer, Task> taskIndexMap;
+    /**
+     * Stops taking builds. The builds already started run to the end, then the workers exit.
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
 
-    PackageBuilderHandler() {
-        this.queue = new LinkedList<>();
-        this.lock = new ReentrantLock();
-        this.entryAdded = lock.newCondition();
-        this.graph = new List[100];
-        this.taskIndexMap = new HashMap<>();
+    public boolean awaitTermination(long timeoutInMs) throws InterruptedException {
+        return pool.awaitTermination(timeoutInMs, TimeUnit.MILLISECONDS);
     }
+}
 
-    public void addPackageGraph(List<Integer>[] graph, Map<Integer, Task> taskIndexMap) {
+/**
+ * FIFO releases ready tasks in the order they became ready. CRITICAL_PATH releases first the ready
+ * task with the longest chain of work still hanging off it, its own duration included, so the long
+ * chains that bound the build's duration start as early as possible.
+ */
+enum SchedulingMode {
+    FIFO,
+    CRITICAL_PATH
+}
 
-        this.graph = graph;
-        this.taskIndexMap = taskIndexMap;
+/**
+ * A package whose build depends only on its own inputs and on its dependencies' outputs. When neither
+ * changed since a build in the cache, its cached output is restored instead of running it. A plain
+ * Runnable always runs, and so do the packages depending on it, as its output is unknown.
+ */
+interface IIncrementalPackage extends Runnable {
+
+    /**
+     * Identifies the package across builds and processes.
+     */
+    String name();
+
+    /**
+     * Everything the package is built from, such as its sources and build settings.
+     */
+    byte[] inputs();
+
+    /**
+     * What the last run produced.
+     */
+    byte[] output();
+
+    /**
+     * Takes the output of an earlier identical build instead of running.
+     */
+    void restore(byte[] output);
+}
+
+/**
+ * Runs one build on the shared pool. Each task counts its parents still building, and the parent that
+ * brings the count to zero dispatches it, so a task runs exactly once, after all of its dependencies,
+ * without a lock. Dispatched tasks wait in the build's own ready queue until the build is under its
+ * share of the workers: the pool size divided among the running builds, rounded up. The share is
+ * checked again between two tasks on a worker, as it shrinks when another build starts.
+ */
+class PackageBuilderHandler {
 
-        new Thread(new BuildExecutor(this.queue, this.lock, this.entryAdded, this.graph, this.taskIndexMap)).start();
+    private final ForkJoinPool pool;
+    private final AtomicInteger activeBuilds;
+    private final Map<Runnable, Long> durations;
+    private final long startNanos;
+    private final CompletableFuture<BuildReport> done;
+    private final Queue<Task> ready;
+    // workers busy with this build
+    private final AtomicInteger running;
+
+    final SchedulingMode mode;
+    final BuildCache cache;
+    BuildGraph graph;
+    Task[] tasks;
+    // parents of each task not built yet; the parent that brings it to zero dispatches the task
+    AtomicIntegerArray remainingParents;
+    // with a cache, the parents of each task, in the graph's CSR form
+    int[] parentOffsets;
+    int[] parents;
+    BuildProgress progress;
+
+    PackageBuilderHandler(ForkJoinPool pool, AtomicInteger activeBuilds, SchedulingMode mode,
+                          Map<Runnable, Long> durations, BuildCache cache, long startNanos,
+                          CompletableFuture<BuildReport> done) {
+        this.pool = pool;
+        this.activeBuilds = activeBuilds;
+        this.mode = mode;
+        this.durations = durations;
+        this.cache = cache;
+        this.startNanos = startNanos;
+        this.done = done;
+        if (SchedulingMode.CRITICAL_PATH.equals(mode))
+            this.ready = new PriorityBlockingQueue<>(11, Task.BY_PRIORITY);
+        else
+            this.ready = new ConcurrentLinkedQueue<>();
+        this.running = new AtomicInteger();
+    }
 
-        int n = taskIndexMap.size();
+    public void addPackageGraph(BuildGraph graph) {
 
-        int[] inDegree = new int[n];
+        this.graph = graph;
 
+        int n = graph.size();
+        tasks = new Task[n];
         for (int i=0; i<n; i++) {
-            for (int id: graph[i]) {
-                inDegree[id]++;
+            tasks[i] = new Task(i, graph.job(i), this);
+        }
+        // only a critical path build reads the durations back, so only one records them
+        progress = new BuildProgress(startNanos, graph, tasks,
+                SchedulingMode.CRITICAL_PATH.equals(mode) ? durations : null, done);
+        if (n == 0) {
+            progress.complete();
+            return;
+        }
+        if (SchedulingMode.CRITICAL_PATH.equals(mode)) {
+            long[] cost = new long[n];
+            for (int i=0; i<n; i++) {
+                // a job never built nor estimated counts as one unit, so the longest path is by length
+                cost[i] = durations.getOrDefault(tasks[i].job, 1L);
+            }
+            long[] levels = CriticalPath.bottomLevels(graph, cost);
+            for (int i=0; i<n; i++) {
+                tasks[i].priority = levels[i];
             }
         }
 
+        int[] inDegree = graph.inDegrees();
+
+        // a package's fingerprint covers its dependencies' outputs
+        if (cache != null) {
+            parents = new int[graph.dependencyCount()];
+            parentOffsets = graph.reverse(parents);
+        }
+
+        // every count is set before the first task runs, as any of them may dispatch another
+        remainingParents = new AtomicIntegerArray(inDegree);
+        List<Task> roots = new ArrayList<>();
         for (int i=0 ;i<n; i++) {
             if (inDegree[i] == 0)
-                QueueUtil.addToQueue(queue, lock, entryAdded, taskIndexMap.get(i));
+                roots.add(tasks[i]);
+        }
+        if (SchedulingMode.CRITICAL_PATH.equals(mode))
+            roots.sort(Task.BY_PRIORITY);
+        for (Task root : roots) {
+            dispatch(root);
         }
     }
-}
 
-class QueueUtil {
-    public static void addToQueue(Queue<Task> queue, Lock lock, Condition entryAdded, Task task) {
-        lock.lock();
-        try {
-            queue.add(task);
-            entryAdded.signalAll();
-        } finally {
-            lock.unlock();
+    void dispatch(Task task) {
+        ready.add(task);
+        drain();
+    }
+
+    /**
+     * A worker is done with this build's tasks for now.
+     */
+    void released() {
+        running.decrementAndGet();
+        drain();
+    }
+
+    /**
+     * Called by a worker between two tasks of this build. Over the build's share, next goes back to the
+     * ready queue and null is returned, so the worker is released; otherwise the build takes up any
+     * share it was given since.
+     */
+    Task continueWith(Task next) {
+        if (next != null && running.get() > share()) {
+            ready.add(next);
+            return null;
+        }
+        drain();
+        return next;
+    }
+
+    /**
+     * True once the build failed or was cancelled; its remaining tasks are dropped.
+     */
+    boolean stopped() {
+        return done.isDone();
+    }
+
+    private void drain() {
+        while (!ready.isEmpty()) {
+            if (stopped()) {
+                ready.clear();
+                return;
+            }
+            int busy = running.get();
+            if (busy >= share())
+                return;
+            if (!running.compareAndSet(busy, busy + 1))
+                continue;
+            Task task = ready.poll();
+            if (task == null) {
+                running.decrementAndGet();
+                continue;
+            }
+            // from a worker, onto its own queue: the pool refuses outside submissions once shut down
+            if (ForkJoinTask.getPool() == pool)
+                ForkJoinTask.adapt(task).fork();
+            else
+                pool.execute(task);
         }
     }
+
+    private int share() {
+        int builds = Math.max(1, activeBuilds.get());
+        return (PackageBuilder.nThread + builds - 1) / builds;
+    }
 }
 
-class BuildExecutor implements Runnable {
+class Task implements Runnable {
 
-    private final Queue<Task> queue;
-    private final Lock lock;
-    private final Condition entryAdded;
-    private final List<Integer>[] graph;
+    // most critical first
+    static final Comparator<Task> BY_PRIORITY = (a, b) -> Long.compare(b.priority, a.priority);
 
-    private final Map<Integer, Task> taskIndexMap;
-    Executor executor;
-    private static final int nThread = 10;
+     final int id;
+     final Runnable job;
+     // length of the longest chain of work starting at this task, in ns; only set for CRITICAL_PATH
+     long priority;
+     long durationInNanos;
+     // hash of what the package produced or restored; null when unknown, as for a plain Runnable
+     byte[] outputHash;
+     boolean fromCache;
 
-    public BuildExecutor(Queue<Task> queue, Lock lock, Condition entryAdded,
-                         List<Integer>[] graph, Map<Integer, Task> taskIndexMap) {
-        this.queue = queue;
-        this.lock = lock;
-        this.entryAdded = entryAdded;
-        this.graph = graph;
-        this.taskIndexMap = taskIndexMap;
+    private final PackageBuilderHandler handler;
 
-        this.executor = Executors.newFixedThreadPool(nThread);
+
+    Task(int id, Runnable job, PackageBuilderHandler handler) {
+        this.id = id;
+        this.job = job;
+        this.handler = handler;
     }
 
     @Override
     public void run() {
+        try {
+            Task task = this;
+            while (task != null) {
+                task = handler.continueWith(task.build());
+            }
+        } finally {
+            handler.released();
+        }
+    }
 
-        while (true) {
-            lock.lock();
-            try {
-                if (!queue.isEmpty()) {
-                    Task task = queue.poll();
-                    task.init(this.queue, this.lock, this.entryAdded, this.graph, this.taskIndexMap);
-                    executor.execute(task);
-                } else {
-                    try {
-                        entryAdded.await();
-                    } catch (InterruptedException e) {
-                        throw new RuntimeException(e);
-                    }
-                }
-            } finally {
-                lock.unlock();
+    /**
+     * Builds this package and dispatches the dependents that were waiting only on it. One of them is
+     * returned to be built next on the same worker, the most critical under CRITICAL_PATH, so a chain
+     * of packages runs in a loop rather than through the pool's queues.
+     */
+    private Task build() {
+        if (handler.stopped())
+            return null;
+        long start = System.nanoTime();
+        try {
+            if (handler.cache == null || !(job instanceof IIncrementalPackage)) {
+                job.run();
+            } else {
+                buildIncrementally((IIncrementalPackage) job);
+            }
+        } catch (Throwable e) {
+            // an Error too ends the build, or its future would never complete
+            handler.progress.failed(e);
+            return null;
+        }
+        durationInNanos = System.nanoTime() - start;
+
+        Task next = null;
+        BuildGraph graph = handler.graph;
+        for (int k=graph.firstDependent(id); k<graph.endOfDependents(id); k++) {
+            int childId = graph.dependent(k);
+            if (handler.remainingParents.decrementAndGet(childId) != 0)
+                continue;
+            Task child = handler.tasks[childId];
+            if (next == null) {
+                next = child;
+            } else if (SchedulingMode.CRITICAL_PATH.equals(handler.mode) && BY_PRIORITY.compare(child, next) < 0) {
+                handler.dispatch(next);
+                next = child;
+            } else {
+                handler.dispatch(child);
+            }
+        }
+        handler.progress.finished(this);
+        return next;
+    }
+
+    private void buildIncrementally(IIncrementalPackage pkg) {
+        byte[] fingerprint = null;
+        int first = handler.parentOffsets[id];
+        int nParents = handler.parentOffsets[id + 1] - first;
+        String[] dependencyNames = new String[nParents];
+        byte[][] dependencyOutputs = new byte[nParents][];
+        for (int i=0; i<nParents; i++) {
+            Task parent = handler.tasks[handler.parents[first + i]];
+            // only an IIncrementalPackage has an output hash
+            dependencyOutputs[i] = parent.outputHash;
+            if (dependencyOutputs[i] == null) {
+                dependencyOutputs = null;
+                break;
             }
+            dependencyNames[i] = ((IIncrementalPackage) parent.job).name();
         }
+        if (dependencyOutputs != null) {
+            fingerprint = BuildCache.fingerprint(pkg, dependencyNames, dependencyOutputs);
+            byte[] output = handler.cache.get(fingerprint);
+            if (output != null) {
+                pkg.restore(output);
+                outputHash = BuildCache.hash(output);
+                fromCache = true;
+                return;
+            }
+        }
+
+        pkg.run();
+        byte[] output = pkg.output();
+        outputHash = BuildCache.hash(output);
+        if (fingerprint != null)
+            handler.cache.put(fingerprint, output);
     }
 }
 
-class Task implements Runnable {
-     int id;
-     Runnable job;
+/**
+ * Counts down the tasks of one build. The last one to finish completes the build's future with a
+ * report of the measured durations.
+ */
+class BuildProgress {
+
+    private final long startNanos;
+    private final AtomicInteger remaining;
+    private final BuildGraph graph;
+    private final Task[] tasks;
+    private final Map<Runnable, Long> durations;
+    private final CompletableFuture<BuildReport> done;
+
+    BuildProgress(long startNanos, BuildGraph graph, Task[] tasks, Map<Runnable, Long> durations,
+                  CompletableFuture<BuildReport> done) {
+        this.startNanos = startNanos;
+        this.remaining = new AtomicInteger(tasks.length);
+        this.graph = graph;
+        this.tasks = tasks;
+        this.durations = durations;
+        this.done = done;
+    }
 
-    private Queue<Task> queue;
-    private Lock lock;
-    private Condition entryAdded;
-    private List<Integer>[] graph;
-    private Map<Integer, Task> taskIndexMap;
+    void finished(Task task) {
+        // a restore says nothing of how long the package takes to build
+        if (durations != null && !task.fromCache)
+            durations.put(task.job, task.durationInNanos);
+        if (remaining.decrementAndGet() == 0)
+            complete();
+    }
 
+    void failed(Throwable e) {
+        done.completeExceptionally(e);
+    }
 
-    Task(int id, Runnable job) {
-        this.id = id;
-        this.job = job;
+    void complete() {
+        long makespan = System.nanoTime() - startNanos;
+        int n = tasks.length;
+        long[] cost = new long[n];
+        long work = 0;
+        int fromCache = 0;
+        for (int i=0; i<n; i++) {
+            cost[i] = tasks[i].durationInNanos;
+            work += cost[i];
+            if (tasks[i].fromCache)
+                fromCache++;
+        }
+        long criticalPath = 0;
+        for (long level : CriticalPath.bottomLevels(graph, cost)) {
+            criticalPath = Math.max(criticalPath, level);
+        }
+        done.complete(new BuildReport(n, fromCache, makespan, criticalPath, work, PackageBuilder.nThread));
     }
+}
 
-    public void init(Queue<Task> queue, Lock lock, Condition entryAdded, List<Integer>[] graph,
-                     Map<Integer, Task> taskIndexMap) {
-        this.queue = queue;
-        this.lock = lock;
-        this.entryAdded = entryAdded;
-        this.graph = graph;
-        this.taskIndexMap = taskIndexMap;
+class CriticalPath {
+
+    /**
+     * For each task, the total cost of the costliest path from it to the end of the build, its own cost
+     * included.
+     */
+    static long[] bottomLevels(BuildGraph graph, long[] cost) {
+        int[] order = graph.topologicalOrder();
+        long[] levels = new long[cost.length];
+        for (int k=order.length-1; k>=0; k--) {
+            int task = order[k];
+            long longestChild = 0;
+            for (int i=graph.firstDependent(task); i<graph.endOfDependents(task); i++) {
+                longestChild = Math.max(longestChild, levels[graph.dependent(i)]);
+            }
+            levels[task] = cost[task] + longestChild;
+        }
+        return levels;
+    }
+}
 
+/**
+ * How close a build came to the fastest possible. No schedule can beat the longest dependency chain,
+ * nor the total work spread evenly over every worker.
+ */
+class BuildReport {
+    final int nTasks;
+    final int nFromCache;
+    final long makespanInNanos;
+    final long criticalPathInNanos;
+    final long workInNanos;
+    final int nThread;
+
+    BuildReport(int nTasks, int nFromCache, long makespanInNanos, long criticalPathInNanos, long workInNanos,
+                int nThread) {
+        this.nTasks = nTasks;
+        this.nFromCache = nFromCache;
+        this.makespanInNanos = makespanInNanos;
+        this.criticalPathInNanos = criticalPathInNanos;
+        this.workInNanos = workInNanos;
+        this.nThread = nThread;
     }
 
-    @Override
-    public void run() {
-        job.run();
+    long lowerBoundInNanos() {
+        return Math.max(criticalPathInNanos, (workInNanos + nThread - 1) / nThread);
+    }
 
-        for (Integer taskId: graph[id]) {
-            QueueUtil.addToQueue(queue, lock, entryAdded, taskIndexMap.get(taskId));
-        }
+    @Override
+    public String toString() {
+        long lowerBound = lowerBoundInNanos();
+        return String.format("built %d packages (%d from cache) in %d ms, lower bound %d ms "
+                + "(critical path %d ms, work %d ms over %d threads), %.0f%% of bound",
+                nTasks, nFromCache, TimeUnit.NANOSECONDS.toMillis(makespanInNanos),
+                TimeUnit.NANOSECONDS.toMillis(lowerBound), TimeUnit.NANOSECONDS.toMillis(criticalPathInNanos),
+                TimeUnit.NANOSECONDS.toMillis(workInNanos), nThread,
+                lowerBound == 0 ? 100.0 : 100.0 * makespanInNanos / lowerBound);
     }
 }
@@ -0,0 +1,117 @@
+package dependencybuilder;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/***
+ * Builds sharing the one worker pool. First, a small build started while a large one is running:
+ * with its fair share of the workers it finishes in about the time it would take alone, instead of
+ * after the large build's backlog. The large build is once a set of independent packages, and once
+ * a few long chains, each of which a worker would otherwise run to its end without stopping. Then,
+ * many small builds in a row, a few at a time, with the throughput and live thread count of each
+ * round: neither should drift as builds come and go.
+ * Packages sleep for their duration, like a compiler waiting on I/O.
+ * Run with: java dependencybuilder.SharedPoolBenchmark
+ */
+public class SharedPoolBenchmark {
+
+    private static final int LARGE_BUILD = 4000;
+    private static final int SMALL_BUILD = 40;
+    private static final int CHAINS = 10;
+    private static final int CHAIN_LENGTH = 1000;
+    private static final long PACKAGE_IN_MS = 2;
+    private static final int ROUNDS = 5;
+    private static final int BUILDS_PER_ROUND = 1000;
+    private static final int CONCURRENT_BUILDS = 4;
+
+    public static void main(String[] args) throws InterruptedException, ExecutionException {
+        PackageBuilder builder = PackageBuilder.getInstance();
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        System.out.printf("%d workers, packages of %d ms%n", PackageBuilder.nThread, PACKAGE_IN_MS);
+
+        BuildReport alone = builder.build(independentPackages(SMALL_BUILD), SMALL_BUILD).get();
+        System.out.printf("%d package build alone: %d ms%n", SMALL_BUILD, alone.makespanInNanos / 1_000_000);
+        besideLargeBuild(builder, LARGE_BUILD + " independent packages", independentPackages(LARGE_BUILD),
+                LARGE_BUILD);
+        besideLargeBuild(builder, CHAINS + " chains of " + CHAIN_LENGTH, chains(CHAINS, CHAIN_LENGTH),
+                CHAINS * CHAIN_LENGTH);
+
+        System.out.printf("%-6s %10s %10s %10s%n", "round", "builds/s", "threads", "peak");
+        Map<Runnable, List<Runnable>> jobs = independentPackages(SMALL_BUILD);
+        for (int round=1; round<=ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int i=0; i<BUILDS_PER_ROUND; i+=CONCURRENT_BUILDS) {
+                List<CompletableFuture<BuildReport>> builds = new ArrayList<>();
+                for (int j=0; j<CONCURRENT_BUILDS; j++) {
+                    builds.add(builder.build(jobs, SMALL_BUILD));
+                }
+                CompletableFuture.allOf(builds.toArray(new CompletableFuture<?>[0])).join();
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("%-6d %10.0f %10d %10d%n", round, BUILDS_PER_ROUND / seconds,
+                    threads.getThreadCount(), threads.getPeakThreadCount());
+        }
+
+        builder.shutdown();
+        System.out.println("workers stopped: " + builder.awaitTermination(1000)
+                + ", live threads: " + threads.getThreadCount());
+    }
+
+    /**
+     * Times the small build from the call to build to the end, as seen by the caller, as well as in
+     * its report.
+     */
+    private static void besideLargeBuild(PackageBuilder builder, String name, Map<Runnable, List<Runnable>> jobs,
+                                         int nPackages) throws InterruptedException, ExecutionException {
+        CompletableFuture<BuildReport> large = builder.build(jobs, nPackages);
+        Thread.sleep(100);
+        long start = System.nanoTime();
+        BuildReport beside = builder.build(independentPackages(SMALL_BUILD), SMALL_BUILD).get();
+        long waited = System.nanoTime() - start;
+        System.out.printf("%d package build beside %s: %d ms, %d ms reported (the large build took %d ms)%n",
+                SMALL_BUILD, name, waited / 1_000_000, beside.makespanInNanos / 1_000_000,
+                large.get().makespanInNanos / 1_000_000);
+    }
+
+    private static Map<Runnable, List<Runnable>> chains(int n, int length) {
+        Map<Runnable, List<Runnable>> jobs = new HashMap<>();
+        for (int i=0; i<n; i++) {
+            Runnable previous = sleeping(PACKAGE_IN_MS);
+            jobs.put(previous, new ArrayList<>());
+            for (int j=1; j<length; j++) {
+                Runnable next = sleeping(PACKAGE_IN_MS);
+                jobs.put(next, new ArrayList<>());
+                jobs.get(previous).add(next);
+                previous = next;
+            }
+        }
+        return jobs;
+    }
+
+    private static Map<Runnable, List<Runnable>> independentPackages(int n) {
+        Map<Runnable, List<Runnable>> jobs = new HashMap<>();
+        for (int i=0; i<n; i++) {
+            jobs.put(sleeping(PACKAGE_IN_MS), new ArrayList<>());
+        }
+        return jobs;
+    }
+
+    /**
+     * A new package on every call: a lambda capturing nothing would be one shared instance.
+     */
+    private static Runnable sleeping(long ms) {
+        return () -> {
+            try {
+                Thread.sleep(ms);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+    }
+}
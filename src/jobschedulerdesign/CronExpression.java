@@ -0,0 +1,288 @@
+package jobschedulerdesign;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/***
+ * Five field cron expression: minute hour day-of-month month day-of-week, in the JVM's default time
+ * zone. Each field accepts *, values, ranges, steps and lists, and month and day-of-week also accept
+ * three letter names. As in cron, when both day fields are restricted a day matching either of them
+ * matches. The fields are compiled into bitsets once, and the next fire time is found by walking
+ * those bitsets with plain calendar arithmetic, without allocating. Jobs with the same expression
+ * share one compiled instance.
+ */
+class CronExpression {
+
+    private static final ConcurrentMap<String, CronExpression> COMPILED = new ConcurrentHashMap<>();
+    private static final Map<String, String> MACROS = new HashMap<>();
+    private static final String[] MONTH_NAMES = {"JAN", "FEB", "MAR", "APR", "MAY", "JUN", "JUL", "AUG", "SEP", "OCT",
+            "NOV", "DEC"};
+    private static final String[] DAY_NAMES = {"SUN", "MON", "TUE", "WED", "THU", "FRI", "SAT"};
+    private static final long MS_PER_MINUTE = 60_000;
+    private static final long HALF_DAY_IN_MS = 12 * 60 * MS_PER_MINUTE;
+    private static final long NONE = Long.MIN_VALUE;
+    // a 29th of February can be eight years away
+    private static final int MAX_YEARS_AHEAD = 8;
+
+    static {
+        MACROS.put("@yearly", "0 0 1 1 *");
+        MACROS.put("@annually", "0 0 1 1 *");
+        MACROS.put("@monthly", "0 0 1 * *");
+        MACROS.put("@weekly", "0 0 * * 0");
+        MACROS.put("@daily", "0 0 * * *");
+        MACROS.put("@midnight", "0 0 * * *");
+        MACROS.put("@hourly", "0 * * * *");
+    }
+
+    private final String expression;
+    private final long minutes;
+    private final long hours;
+    private final long daysOfMonth;
+    private final long months;
+    private final long daysOfWeek;
+    private final boolean dayOfMonthRestricted;
+    private final boolean dayOfWeekRestricted;
+    private final TimeZone zone;
+
+    private CronExpression(String expression, TimeZone zone) {
+        String[] fields = MACROS.getOrDefault(expression, expression).split(" ");
+        if (fields.length != 5)
+            throw new RuntimeException("Invalid input");
+        this.expression = expression;
+        this.minutes = parseField(fields[0], 0, 59, null);
+        this.hours = parseField(fields[1], 0, 23, null);
+        this.daysOfMonth = parseField(fields[2], 1, 31, null);
+        this.months = parseField(fields[3], 1, 12, MONTH_NAMES);
+        long days = parseField(fields[4], 0, 7, DAY_NAMES);
+        // 7 is Sunday as well as 0
+        this.daysOfWeek = (days | (days >>> 7)) & 0x7F;
+        this.dayOfMonthRestricted = !fields[2].startsWith("*") && !fields[2].startsWith("?");
+        this.dayOfWeekRestricted = !fields[4].startsWith("*") && !fields[4].startsWith("?");
+        this.zone = zone;
+    }
+
+    /**
+     * Returns the shared compiled form of the expression in the current default time zone.
+     */
+    static CronExpression compile(String expression) {
+        if (expression == null)
+            throw new RuntimeException("Invalid input");
+        String normalized = expression.trim().replaceAll("\\s+", " ").toUpperCase(Locale.ROOT);
+        if (normalized.startsWith("@"))
+            normalized = normalized.toLowerCase(Locale.ROOT);
+        TimeZone zone = TimeZone.getDefault();
+        String key = zone.getID() + " " + normalized;
+        CronExpression cron = COMPILED.get(key);
+        if (cron == null) {
+            cron = new CronExpression(normalized, zone);
+            CronExpression raced = COMPILED.putIfAbsent(key, cron);
+            if (raced != null)
+                cron = raced;
+        }
+        return cron;
+    }
+
+    /**
+     * First matching minute strictly after the given time, in epoch ms, or -1 if the expression
+     * never matches, such as on the 30th of February.
+     */
+    long nextFireTime(long afterMs) {
+        int offset = zone.getOffset(afterMs);
+        long fireAt = nextFireTime(afterMs, afterMs + offset);
+        // the clock is about to be set back, so the coming local times include some already passed
+        int laterOffset = zone.getOffset(afterMs + HALF_DAY_IN_MS);
+        if (laterOffset < offset) {
+            long repeated = nextFireTime(afterMs, afterMs + laterOffset);
+            if (repeated != NONE && (fireAt == NONE || repeated < fireAt))
+                fireAt = repeated;
+        }
+        return fireAt == NONE ? -1 : fireAt;
+    }
+
+    /**
+     * Walks forward from the local time localMs to the first matching local time that is an instant
+     * after afterMs.
+     */
+    private long nextFireTime(long afterMs, long localMs) {
+        long localMinute = Math.floorDiv(localMs, MS_PER_MINUTE) + 1;
+        long day = Math.floorDiv(localMinute, 1440);
+        int minuteOfDay = Math.toIntExact(localMinute - day * 1440);
+
+        // civil date of the day, after H. Hinnant's days_from_civil inverse
+        long z = day + 719468;
+        long era = Math.floorDiv(z, 146097);
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long mp = (5 * dayOfYear + 2) / 153;
+        int dayOfMonth = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+        int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        int year = (int) (yearOfEra + era * 400 + (month <= 2 ? 1 : 0));
+        int hour = minuteOfDay / 60;
+        int minute = minuteOfDay % 60;
+
+        int lastYear = year + MAX_YEARS_AHEAD;
+        while (year <= lastYear) {
+            if ((months & (1L << month)) == 0) {
+                if (++month > 12) {
+                    month = 1;
+                    year++;
+                }
+                dayOfMonth = 1;
+                hour = 0;
+                minute = 0;
+                continue;
+            }
+            if (dayOfMonth > daysInMonth(year, month) || !dayMatches(year, month, dayOfMonth)) {
+                if (++dayOfMonth > daysInMonth(year, month)) {
+                    dayOfMonth = 1;
+                    if (++month > 12) {
+                        month = 1;
+                        year++;
+                    }
+                }
+                hour = 0;
+                minute = 0;
+                continue;
+            }
+            int nextHour = nextBit(hours, hour);
+            if (nextHour < 0) {
+                hour = 24;
+            } else {
+                if (nextHour != hour)
+                    minute = 0;
+                hour = nextHour;
+                int nextMinute = nextBit(minutes, minute);
+                if (nextMinute >= 0) {
+                    long local = (daysFromCivil(year, month, dayOfMonth) * 1440 + hour * 60 + nextMinute) * MS_PER_MINUTE;
+                    long fireAt = instantAfter(local, afterMs);
+                    if (fireAt != NONE)
+                        return fireAt;
+                    minute = nextMinute + 1;
+                    continue;
+                }
+                hour++;
+                minute = 0;
+            }
+            if (hour > 23) {
+                hour = 0;
+                minute = 0;
+                if (++dayOfMonth > daysInMonth(year, month)) {
+                    dayOfMonth = 1;
+                    if (++month > 12) {
+                        month = 1;
+                        year++;
+                    }
+                }
+            }
+        }
+        return NONE;
+    }
+
+    @Override
+    public String toString() {
+        return expression;
+    }
+
+    /**
+     * First instant after afterMs at which the local clock reads local. A local time in the hour
+     * repeated when daylight saving time ends is two instants, and one in the hour skipped when it
+     * starts is none, so it does not fire that day.
+     */
+    private long instantAfter(long local, long afterMs) {
+        long earlier = local - zone.getOffset(local - HALF_DAY_IN_MS);
+        long later = local - zone.getOffset(local + HALF_DAY_IN_MS);
+        long first = Math.min(earlier, later);
+        long second = Math.max(earlier, later);
+        if (first > afterMs && first + zone.getOffset(first) == local)
+            return first;
+        if (second > afterMs && second + zone.getOffset(second) == local)
+            return second;
+        return NONE;
+    }
+
+    private boolean dayMatches(int year, int month, int dayOfMonth) {
+        boolean domMatches = (daysOfMonth & (1L << dayOfMonth)) != 0;
+        // 1970-01-01 was a Thursday
+        int dayOfWeek = Math.toIntExact(Math.floorMod(daysFromCivil(year, month, dayOfMonth) + 4, 7L));
+        boolean dowMatches = (daysOfWeek & (1L << dayOfWeek)) != 0;
+        if (dayOfMonthRestricted && dayOfWeekRestricted)
+            return domMatches || dowMatches;
+        return domMatches && dowMatches;
+    }
+
+    /**
+     * Lowest set bit at or above from, or -1.
+     */
+    private static int nextBit(long bits, int from) {
+        if (from > 63)
+            return -1;
+        long remaining = bits & (-1L << from);
+        return remaining == 0 ? -1 : Long.numberOfTrailingZeros(remaining);
+    }
+
+    private static int daysInMonth(int year, int month) {
+        if (month == 2)
+            return (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) ? 29 : 28;
+        return month == 4 || month == 6 || month == 9 || month == 11 ? 30 : 31;
+    }
+
+    private static long daysFromCivil(int year, int month, int dayOfMonth) {
+        long y = month <= 2 ? year - 1 : year;
+        long era = Math.floorDiv(y, 400);
+        long yearOfEra = y - era * 400;
+        long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + dayOfMonth - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    private static long parseField(String field, int min, int max, String[] names) {
+        long bits = 0;
+        try {
+            for (String part : field.split(",")) {
+                int step = 1;
+                String range = part;
+                int slash = part.indexOf('/');
+                if (slash >= 0) {
+                    step = Integer.parseInt(part.substring(slash + 1));
+                    range = part.substring(0, slash);
+                }
+                int low;
+                int high;
+                int dash = range.indexOf('-');
+                if (range.equals("*") || range.equals("?")) {
+                    low = min;
+                    high = max;
+                } else if (dash > 0) {
+                    low = parseValue(range.substring(0, dash), min, names);
+                    high = parseValue(range.substring(dash + 1), min, names);
+                } else {
+                    low = parseValue(range, min, names);
+                    high = slash >= 0 ? max : low;
+                }
+                if (step <= 0 || low < min || high > max || low > high)
+                    throw new RuntimeException("Invalid input");
+                for (int value=low; value<=high; value+=step) {
+                    bits |= 1L << value;
+                }
+            }
+        } catch (NumberFormatException e) {
+            throw new RuntimeException("Invalid input");
+        }
+        return bits;
+    }
+
+    private static int parseValue(String value, int min, String[] names) {
+        if (names != null) {
+            for (int i=0; i<names.length; i++) {
+                if (names[i].equals(value))
+                    return i + min;
+            }
+        }
+        return Integer.parseInt(value);
+    }
+}
@@ -0,0 +1,204 @@
+package jobschedulerdesign;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/***
+ * Scheduler whose jobs survive a restart. Every schedule, fire and cancel is recorded in a JobStore
+ * before the job runs on the underlying engine, and on startup the pending jobs are read back and
+ * scheduled again. A Runnable cannot be persisted, so tasks are registered by name up front and jobs
+ * refer to them by that name.
+ * The store forces its records to disk in a background flush, so schedule, cancel and reschedule
+ * return before their record is durable: a crash within the store's flush interval, 10 ms, of the
+ * call can lose it. A lost schedule is never recovered, a lost cancel runs the job after the restart
+ * and a lost fire runs it again.
+ */
+class DurableScheduler {
+
+    // bounds the catch-up after a long outage under FIRE_NOW
+    private static final int MAX_MISSED_RUNS = 1000;
+
+    private final IScheduler scheduler;
+    private final JobStore store;
+    private final Map<String, Runnable> tasks;
+    private final MissedFirePolicy missedFirePolicy;
+    private final Map<String, DurableHandle> recovered;
+
+    DurableScheduler(IScheduler scheduler, JobStore store, Map<String, Runnable> tasks, MissedFirePolicy missedFirePolicy) {
+        this.scheduler = scheduler;
+        this.store = store;
+        this.tasks = tasks;
+        this.missedFirePolicy = missedFirePolicy;
+        this.recovered = new HashMap<>();
+        recover();
+    }
+
+    public DurableHandle schedule(String taskName, long delayInMs) {
+        return submit(newRecord(taskName, JobType.ONCE, delayInMs, 0));
+    }
+
+    public DurableHandle scheduledAtFixedRate(String taskName, long delayInMs, long recurringDelayInMs) {
+        return submit(newRecord(taskName, JobType.FIXED_RATE, delayInMs, recurringDelayInMs));
+    }
+
+    public DurableHandle scheduledWithFixedDelay(String taskName, long delayInMs, long recurringDelayInMs) {
+        return submit(newRecord(taskName, JobType.FIXED_DELAY, delayInMs, recurringDelayInMs));
+    }
+
+    /**
+     * Handle of a job brought back from the store on startup, or null if it did not survive recovery.
+     */
+    public DurableHandle recovered(String jobId) {
+        return recovered.get(jobId);
+    }
+
+    private JobRecord newRecord(String taskName, JobType jobType, long delayInMs, long period) {
+        if (taskName == null || !tasks.containsKey(taskName) || delayInMs < 0
+                || (!JobType.ONCE.equals(jobType) && period <= 0))
+            throw new RuntimeException("Invalid input");
+        return new JobRecord(UUID.randomUUID().toString(), taskName, jobType,
+                System.currentTimeMillis() + delayInMs, period);
+    }
+
+    private DurableHandle submit(JobRecord record) {
+        // journalled before the engine can run it, so recovery never misses a job that already fired;
+        // the record is only on disk after the next flush, though
+        store.scheduled(record);
+        return start(record, tasks.get(record.taskName), record.nextFireAt - System.currentTimeMillis());
+    }
+
+    private DurableHandle start(JobRecord record, Runnable task, long delayInMs) {
+        DurableTask durableTask = new DurableTask(record, task, store);
+        delayInMs = Math.max(delayInMs, 0);
+        ScheduledHandle handle;
+        if (JobType.FIXED_RATE.equals(record.jobType))
+            handle = scheduler.scheduledAtFixedRate(durableTask, delayInMs, record.period);
+        else if (JobType.FIXED_DELAY.equals(record.jobType))
+            handle = scheduler.scheduledWithFixedDelay(durableTask, delayInMs, record.period);
+        else
+            handle = scheduler.schedule(durableTask, delayInMs);
+        return new DurableHandle(handle, record, store);
+    }
+
+    private void recover() {
+        long now = System.currentTimeMillis();
+        for (JobRecord record : store.pending()) {
+            Runnable task = tasks.get(record.taskName);
+            if (task == null) {
+                System.out.println("No task registered as " + record.taskName + ", dropping job " + record.jobId);
+                store.cancelled(record);
+                continue;
+            }
+            if (record.nextFireAt >= now) {
+                recovered.put(record.jobId, start(record, task, record.nextFireAt - now));
+                continue;
+            }
+            if (JobType.ONCE.equals(record.jobType)) {
+                if (MissedFirePolicy.SKIP.equals(missedFirePolicy)) {
+                    store.fired(record);
+                    continue;
+                }
+                recovered.put(record.jobId, start(record, task, 0));
+                continue;
+            }
+
+            long missed = (now - record.nextFireAt) / record.period + 1;
+            if (MissedFirePolicy.SKIP.equals(missedFirePolicy)) {
+                record.nextFireAt += missed * record.period;
+                store.scheduled(record);
+                recovered.put(record.jobId, start(record, task, record.nextFireAt - now));
+                continue;
+            }
+            if (MissedFirePolicy.FIRE_NOW.equals(missedFirePolicy)) {
+                // the catch-up runs are not journalled; a crash during them repeats them
+                for (long i=1; i<Math.min(missed, MAX_MISSED_RUNS); i++) {
+                    scheduler.schedule(task, 0);
+                }
+            }
+            // the latest missed occurrence runs now, and the job carries on from there
+            record.nextFireAt += (missed - 1) * record.period;
+            store.scheduled(record);
+            recovered.put(record.jobId, start(record, task, 0));
+        }
+    }
+}
+
+/**
+ * What to do on recovery with a job whose fire time passed while the scheduler was down.
+ * FIRE_NOW runs every missed occurrence of a recurring job, COALESCE runs it once for all of them and
+ * SKIP resumes it at its next future occurrence. A missed one time job runs now, unless skipped.
+ */
+enum MissedFirePolicy {
+    FIRE_NOW,
+    SKIP,
+    COALESCE
+}
+
+/**
+ * Records each run in the store. A fixed rate job moves on to its next occurrence before running, as
+ * the engine does, while a fixed delay or one time job is recorded once it has run.
+ */
+class DurableTask implements Runnable {
+
+    private final JobRecord record;
+    private final Runnable task;
+    private final JobStore store;
+
+    DurableTask(JobRecord record, Runnable task, JobStore store) {
+        this.record = record;
+        this.task = task;
+        this.store = store;
+    }
+
+    @Override
+    public void run() {
+        if (JobType.FIXED_RATE.equals(record.jobType)) {
+            record.nextFireAt += record.period;
+            store.fired(record);
+            task.run();
+            return;
+        }
+
+        try {
+            task.run();
+        } finally {
+            if (JobType.FIXED_DELAY.equals(record.jobType))
+                record.nextFireAt = System.currentTimeMillis() + record.period;
+            store.fired(record);
+        }
+    }
+}
+
+class DurableHandle extends ScheduledHandle {
+
+    private final JobRecord record;
+    private final JobStore store;
+
+    DurableHandle(ScheduledHandle handle, JobRecord record, JobStore store) {
+        super(handle.job);
+        this.record = record;
+        this.store = store;
+    }
+
+    public String jobId() {
+        return record.jobId;
+    }
+
+    @Override
+    public boolean cancel() {
+        if (!super.cancel())
+            return false;
+        store.cancelled(record);
+        return true;
+    }
+
+    @Override
+    public boolean reschedule(long delayInMs) {
+        if (!super.reschedule(delayInMs))
+            return false;
+        record.nextFireAt = System.currentTimeMillis() + delayInMs;
+        store.scheduled(record);
+        return true;
+    }
+}
@@ -0,0 +1,153 @@
+package jobschedulerdesign;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/***
+ * Worker pool with one queue, or lane, per job priority. A free worker takes the oldest job of the
+ * most urgent lane that has one waiting, so a critical job due at the same instant as a burst of bulk
+ * jobs is not queued behind them. A lane can be limited to a number of concurrently running jobs;
+ * capping the bulk lane below the pool size keeps the remaining workers free for more urgent jobs,
+ * even while bulk jobs occupy their share for a long time. By default the bulk lane is capped one
+ * below the pool size, as otherwise a critical job still waits for a running bulk job to end.
+ */
+class ExecutionLanes implements Executor {
+
+    private final Lane[] lanes;
+    private final Lock lock;
+    private final Condition entryAdded;
+    private final int nThread;
+    private volatile boolean running;
+
+    ExecutionLanes(int nThread) {
+        if (nThread <= 0)
+            throw new RuntimeException("Invalid input");
+        this.nThread = nThread;
+        this.lanes = new Lane[JobPriority.values().length];
+        for (int i=0; i<lanes.length; i++) {
+            lanes[i] = new Lane(nThread);
+        }
+        if (nThread > 1)
+            lanes[JobPriority.BULK.ordinal()].maxConcurrency = nThread - 1;
+        this.lock = new ReentrantLock();
+        this.entryAdded = lock.newCondition();
+        this.running = true;
+        for (int i=0; i<nThread; i++) {
+            new Thread(this::work, "lane-worker-" + i).start();
+        }
+    }
+
+    /**
+     * At most maxConcurrency jobs of the given priority run at once.
+     */
+    ExecutionLanes limit(JobPriority priority, int maxConcurrency) {
+        if (priority == null || maxConcurrency <= 0)
+            throw new RuntimeException("Invalid input");
+        lock.lock();
+        try {
+            lanes[priority.ordinal()].maxConcurrency = maxConcurrency;
+        } finally {
+            lock.unlock();
+        }
+        return this;
+    }
+
+    int size() {
+        return nThread;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        JobPriority priority = task instanceof Job ? ((Job) task).priority : JobPriority.NORMAL;
+        lock.lock();
+        try {
+            if (!running)
+                throw new RejectedExecutionException("Lanes are shut down");
+            lanes[priority.ordinal()].jobs.add(task);
+            entryAdded.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Workers finish the jobs already queued, then stop.
+     */
+    void shutdown() {
+        lock.lock();
+        try {
+            running = false;
+            entryAdded.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void work() {
+        while (true) {
+            Lane lane;
+            Runnable task;
+            lock.lock();
+            try {
+                while ((lane = nextLane()) == null) {
+                    if (!running && isEmpty())
+                        return;
+                    entryAdded.awaitUninterruptibly();
+                }
+                task = lane.jobs.poll();
+                lane.active++;
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                System.out.println(e);
+            } finally {
+                lock.lock();
+                try {
+                    lane.active--;
+                    // a lane held back by its limit may go ahead, and another worker may be waiting for it
+                    if (!lane.jobs.isEmpty())
+                        entryAdded.signal();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * The most urgent lane with a job waiting and room to run it. Called under the lock.
+     */
+    private Lane nextLane() {
+        for (Lane lane : lanes) {
+            if (!lane.jobs.isEmpty() && lane.active < lane.maxConcurrency)
+                return lane;
+        }
+        return null;
+    }
+
+    private boolean isEmpty() {
+        for (Lane lane : lanes) {
+            if (!lane.jobs.isEmpty())
+                return false;
+        }
+        return true;
+    }
+}
+
+class Lane {
+    ArrayDeque<Runnable> jobs = new ArrayDeque<>();
+    int maxConcurrency;
+    int active;
+
+    Lane(int maxConcurrency) {
+        this.maxConcurrency = maxConcurrency;
+    }
+}
@@ -1,11 +1,18 @@
 package jobschedulerdesign;
 
-import java.util.Calendar;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.Date;
-import java.util.PriorityQueue;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -15,9 +22,12 @@ import java.util.concurrent.locks.ReentrantLock;
  * 1. Client should be able to schedule one time task with some delay.
  * 2. Client should be able to schedule a recurring task with fixed interval.
  * 3. Client should be able to schedule a recurring task with some initial delay.
+ * 4. Client should be able to schedule a recurring task with a cron expression.
+ * 5. Client should be able to choose what happens when a fixed rate run overruns its period.
+ * 6. Client should be able to run latency-critical jobs ahead of bulk jobs due at the same time.
  */
 public class JobSchedulerDesign {
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException, InterruptedException {
         IScheduler scheduler = Scheduler.getInstance();
 
         Runnable task1 = () -> System.out.println("Task 1 - one time");
@@ -28,25 +38,158 @@ public class JobSchedulerDesign {
 
         Runnable task3 = () -> System.out.println("Task 3 - Fix Interval");
         scheduler.scheduledAtFixedRate(task3, 5000, 1000);
+
+        IScheduler wheelScheduler = new TimingWheelScheduler(3);
+        wheelScheduler.schedule(() -> System.out.println("Task 4 - one time on the timing wheel"), 2000);
+        ScheduledHandle task5 = wheelScheduler.scheduledWithFixedDelay(
+                () -> System.out.println("Task 5 - Fix Delay on the timing wheel"), 3000, 2000);
+        wheelScheduler.schedule(() -> {
+            System.out.println("Cancelling Task 5, next run was due at " + task5.nextFireTime());
+            task5.cancel();
+        }, 8000);
+
+        ScheduledHandle task6 = wheelScheduler.schedule(() -> System.out.println("Task 6 - moved forward"), 60000);
+        task6.reschedule(4000);
+
+        IScheduler shardedScheduler = new ShardedScheduler(4);
+        ScheduledHandle task7 = shardedScheduler.scheduledAtFixedRate(
+                () -> System.out.println("Task 7 - Fix Interval on the sharded scheduler"), 1000, 1500);
+        shardedScheduler.schedule(task7::cancel, 6000);
+
+        // every run takes 1.5 periods; SKIP drops the slot each one overruns into
+        ScheduledHandle task10 = wheelScheduler.scheduledAtFixedRate(() -> {
+            System.out.println("Task 10 - Fix Interval, overrunning its period");
+            sleep(1500);
+        }, 0, 1000, OverrunPolicy.SKIP);
+        wheelScheduler.schedule(() -> {
+            task10.cancel();
+            System.out.println("Cancelled Task 10 after " + task10.overruns() + " skipped runs");
+        }, 7000);
+
+        // also readable over JMX, as jobschedulerdesign:type=Scheduler,name="timing-wheel"
+        wheelScheduler.metrics().registerMBean("timing-wheel");
+        wheelScheduler.schedule(() -> System.out.println("Timing wheel metrics:\n" + wheelScheduler.metrics().snapshot()),
+                9000);
+
+        wheelScheduler.scheduleCron(() -> System.out.println("Task 9 - cron, at the start of every minute"), "* * * * *");
+
+        // durable jobs are scheduled by task name and come back after a crash
+        Path journal = Files.createTempFile("jobs", ".journal");
+        Map<String, Runnable> tasks = new HashMap<>();
+        tasks.put("report", () -> System.out.println("Task 8 - durable report at " + new Date()));
+        TimingWheelScheduler engine = new TimingWheelScheduler(2);
+        JobStore store = new JobStore(journal);
+        DurableScheduler durableScheduler = new DurableScheduler(engine, store, tasks, MissedFirePolicy.COALESCE);
+        durableScheduler.scheduledAtFixedRate("report", 1000, 1000);
+        Thread.sleep(2500);
+        System.out.println("Crashing the durable scheduler");
+        engine.shutdown();
+        store.close();
+        // three runs are missed while down; COALESCE runs the job once for all of them
+        Thread.sleep(3000);
+        System.out.println("Restarting the durable scheduler");
+        JobStore reopened = new JobStore(journal);
+        new DurableScheduler(new TimingWheelScheduler(2), reopened, tasks, MissedFirePolicy.COALESCE);
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 }
 
 interface IScheduler {
-    public void schedule(Runnable task, long delayInMs);
-    public void scheduledAtFixedRate(Runnable task, long delayInMs, long recurringDelayInMs);
-    public void scheduledWithFixedDelay(Runnable task, long delayInMs, long recurringDelayInMs);
+    public ScheduledHandle schedule(Runnable task, long delayInMs, JobPriority priority);
+    public ScheduledHandle scheduledAtFixedRate(Runnable task, long delayInMs, long recurringDelayInMs,
+                                                OverrunPolicy overrunPolicy);
+    public ScheduledHandle scheduledWithFixedDelay(Runnable task, long delayInMs, long recurringDelayInMs);
+    public ScheduledHandle scheduleCron(Runnable task, String cron);
+    public SchedulerMetrics metrics();
+
+    public default ScheduledHandle schedule(Runnable task, long delayInMs) {
+        return schedule(task, delayInMs, JobPriority.NORMAL);
+    }
+
+    /**
+     * A run that overruns its period does not hold up the next one.
+     */
+    public default ScheduledHandle scheduledAtFixedRate(Runnable task, long delayInMs, long recurringDelayInMs) {
+        return scheduledAtFixedRate(task, delayInMs, recurringDelayInMs, OverrunPolicy.CONCURRENT);
+    }
+}
+
+/**
+ * What a job needs from the engine it was scheduled on. Recurring jobs enqueue themselves again
+ * after each run, so one job, and one handle, covers all of its runs.
+ */
+interface IJobQueue {
+    void enqueue(Job job, long delayInMs);
+    boolean cancel(Job job);
+    boolean reschedule(Job job, long delayInMs);
+    SchedulerMetrics metrics();
 }
 
-class Scheduler implements IScheduler {
+class ScheduledHandle {
+
+    final Job job;
+
+    ScheduledHandle(Job job) {
+        this.job = job;
+    }
+
+    /**
+     * Returns false if the job was already cancelled or was a one time job that has run.
+     */
+    public boolean cancel() {
+        return job.queue.cancel(job);
+    }
+
+    /**
+     * Moves the next run; returns false unless the job is waiting for it.
+     */
+    public boolean reschedule(long delayInMs) {
+        if (!job.queue.reschedule(job, delayInMs))
+            return false;
+        // a fixed rate job carries on from its new fire time
+        job.anchor(delayInMs);
+        return true;
+    }
+
+    /**
+     * Runs of a fixed rate job that started late, or alongside the previous run, because a run took
+     * longer than the period.
+     */
+    public long overruns() {
+        return job.overruns == null ? 0 : job.overruns.get();
+    }
+
+    /**
+     * null once the job is cancelled or, for a one time job, has run.
+     */
+    public Date nextFireTime() {
+        return job.cancelled || job.done ? null : job.startTime;
+    }
+
+    public boolean isCancelled() {
+        return job.cancelled;
+    }
+}
+
+class Scheduler implements IScheduler, IJobQueue {
 
     private static IScheduler INSTANCE;
-    private final PriorityQueue<Job> jobPriorityQueue;
+    private final JobHeap jobPriorityQueue;
     private final Lock queueLock;
     private final Condition entryAdded;
+    private final SchedulerMetrics metrics;
 
 
     private Scheduler(int nThread) {
-        this.jobPriorityQueue = new PriorityQueue<Job>();
+        this.jobPriorityQueue = new JobHeap();
+        this.metrics = new SchedulerMetrics(nThread);
         this.queueLock = new ReentrantLock();
         this.entryAdded = queueLock.newCondition();
 
@@ -60,49 +203,104 @@ class Scheduler implements IScheduler {
     }
 
     @Override
-    public void schedule(Runnable task, long delayInMs) {
-        Date date = new Date(Calendar.getInstance().getTimeInMillis() + delayInMs);
-        Job job = new Job(UUID.randomUUID().toString(), task, date, JobType.ONCE);
-        addJobToQueue(job);
+    public ScheduledHandle schedule(Runnable task, long delayInMs, JobPriority priority) {
+        if (priority == null)
+            throw new RuntimeException("Invalid input");
+        Job job = new Job(UUID.randomUUID().toString(), task, JobType.ONCE, this);
+        job.priority = priority;
+        enqueue(job, delayInMs);
+        return new ScheduledHandle(job);
+    }
+
+    @Override
+    public ScheduledHandle scheduledAtFixedRate(Runnable task, long delayInMs, long recurringDelayInMs,
+                                                OverrunPolicy overrunPolicy) {
+        Job job = new Job(UUID.randomUUID().toString(), task, recurringDelayInMs, overrunPolicy, this);
+        job.anchor(delayInMs);
+        enqueue(job, delayInMs);
+        return new ScheduledHandle(job);
     }
 
     @Override
-    public void scheduledAtFixedRate(Runnable task, long delayInMs, long recurringDelayInMs) {
-        Date date = new Date(Calendar.getInstance().getTimeInMillis() + delayInMs);
-        Job job = new Job(UUID.randomUUID().toString(), task, date, recurringDelayInMs, JobType.FIXED_RATE);
-        addJobToQueue(job);
+    public ScheduledHandle scheduledWithFixedDelay(Runnable task, long delayInMs, long recurringDelayInMs) {
+        Job job = new Job(UUID.randomUUID().toString(), task, recurringDelayInMs, JobType.FIXED_DELAY, this);
+        enqueue(job, delayInMs);
+        return new ScheduledHandle(job);
     }
 
     @Override
-    public void scheduledWithFixedDelay(Runnable task, long delayInMs, long recurringDelayInMs) {
-        Date date = new Date(Calendar.getInstance().getTimeInMillis() + delayInMs);
-        Job job = new Job(UUID.randomUUID().toString(), task, date, recurringDelayInMs, JobType.FIXED_DELAY);
-        addJobToQueue(job);
+    public ScheduledHandle scheduleCron(Runnable task, String cron) {
+        Job job = new Job(UUID.randomUUID().toString(), task, CronExpression.compile(cron), this);
+        job.enqueueCron(System.currentTimeMillis());
+        // the expression never matches
+        if (job.done)
+            throw new RuntimeException("Invalid input");
+        return new ScheduledHandle(job);
     }
 
-    private void addJobToQueue(Job job) {
+    @Override
+    public void enqueue(Job job, long delayInMs) {
         queueLock.lock();
         try {
+            if (job.cancelled)
+                return;
+            job.startTime = new Date(System.currentTimeMillis() + delayInMs);
+            job.dueNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayInMs);
             jobPriorityQueue.add(job);
+            metrics.enqueued();
             entryAdded.signal();
         } finally {
             queueLock.unlock();
         }
     }
+
+    @Override
+    public boolean cancel(Job job) {
+        queueLock.lock();
+        try {
+            if (job.cancelled || job.done)
+                return false;
+            job.cancelled = true;
+            if (jobPriorityQueue.remove(job))
+                metrics.removed();
+            return true;
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean reschedule(Job job, long delayInMs) {
+        queueLock.lock();
+        try {
+            if (job.cancelled || !jobPriorityQueue.remove(job))
+                return false;
+            metrics.removed();
+            enqueue(job, delayInMs);
+            return true;
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    @Override
+    public SchedulerMetrics metrics() {
+        return metrics;
+    }
 }
 
 class JobExecutor implements Runnable {
 
     private final Executor executor;
-    private final PriorityQueue<Job> jobPriorityQueue;
+    private final JobHeap jobPriorityQueue;
     private final Lock queueLock;
     private final Condition entryAdded;
 
-    public JobExecutor(PriorityQueue<Job> jobPriorityQueue, Lock queueLock, Condition entryAdded, int nThread) {
+    public JobExecutor(JobHeap jobPriorityQueue, Lock queueLock, Condition entryAdded, int nThread) {
         this.jobPriorityQueue = jobPriorityQueue;
         this.queueLock = queueLock;
         this.entryAdded = entryAdded;
-        this.executor = Executors.newFixedThreadPool(nThread);
+        this.executor = new ExecutionLanes(nThread);
     }
 
     @Override
@@ -114,10 +312,20 @@ class JobExecutor implements Runnable {
                     Job job = jobPriorityQueue.peek();
                     Date statTime = job.startTime;
 
-                    Date currentTime = Calendar.getInstance().getTime();
-                    if (currentTime.compareTo(statTime) >= 0) {
-                        jobPriorityQueue.remove();
-                        executor.execute(job);
+                    if (System.currentTimeMillis() >= statTime.getTime()) {
+                        jobPriorityQueue.poll();
+                        try {
+                            executor.execute(job);
+                        } catch (RejectedExecutionException e) {
+                            job.queue.metrics().rejected();
+                        }
+                    } else {
+                        // sleep until the head is due; a new, earlier job signals entryAdded
+                        try {
+                            entryAdded.awaitUntil(statTime);
+                        } catch (InterruptedException e) {
+                            System.out.println(e);
+                        }
                     }
                 } else {
                     try {
@@ -137,50 +345,266 @@ class Job implements Runnable, Comparable<Job> {
 
     String jobId;
     Runnable task;
-    Date startTime;
+    volatile Date startTime;
+    // startTime on the monotonic clock, to measure how late the job starts
+    volatile long dueNanos;
     long reschedulePeriod;
     JobType jobType;
+    JobPriority priority;
+    CronExpression cron;
+    // fixed rate runs are due at nextFireNanos, anchored on the first run, in steps of the period
+    OverrunPolicy overrunPolicy;
+    volatile long nextFireNanos;
+    AtomicInteger inFlight;
+    AtomicLong overruns;
+    IJobQueue queue;
+    volatile boolean cancelled;
+    volatile boolean done;
+    // where the job waits for its next run: its slot in a JobHeap, the worker queue owning that heap,
+    // or its entry in a timing wheel
+    int heapIndex;
+    volatile WorkerQueue workerQueue;
+    TimerEntry timerEntry;
 
-    public Job(String jobId, Runnable task, Date startTime, long reschedulePeriod, JobType jobType) {
+    public Job(String jobId, Runnable task, long reschedulePeriod, JobType jobType, IJobQueue queue) {
         this.jobId = jobId;
         this.task = task;
-        this.startTime = startTime;
         this.reschedulePeriod = reschedulePeriod;
         this.jobType = jobType;
+        this.queue = queue;
+        this.priority = JobPriority.NORMAL;
+        this.heapIndex = -1;
     }
 
-    public Job(String jobId, Runnable task, Date startTime, JobType jobType) {
-        this.jobId = jobId;
-        this.task = task;
-        this.startTime = startTime;
-        this.reschedulePeriod = 0;
-        this.jobType = jobType;
+    public Job(String jobId, Runnable task, JobType jobType, IJobQueue queue) {
+        this(jobId, task, 0, jobType, queue);
+    }
+
+    public Job(String jobId, Runnable task, long reschedulePeriod, OverrunPolicy overrunPolicy, IJobQueue queue) {
+        this(jobId, task, reschedulePeriod, JobType.FIXED_RATE, queue);
+        this.overrunPolicy = overrunPolicy;
+        this.inFlight = new AtomicInteger();
+        this.overruns = new AtomicLong();
+    }
+
+    public Job(String jobId, Runnable task, CronExpression cron, IJobQueue queue) {
+        this(jobId, task, 0, JobType.CRON, queue);
+        this.cron = cron;
+    }
+
+    /**
+     * Enqueues a cron job for its first fire time after the given one.
+     */
+    void enqueueCron(long afterMs) {
+        long nextFireTime = cron.nextFireTime(afterMs);
+        if (nextFireTime < 0) {
+            done = true;
+            return;
+        }
+        queue.enqueue(this, nextFireTime - System.currentTimeMillis());
+    }
+
+    /**
+     * Fixes the next fire time of a fixed rate job; the ones after it follow at whole periods.
+     */
+    void anchor(long delayInMs) {
+        nextFireNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayInMs);
+    }
+
+    /**
+     * Enqueues a fixed rate job for nextFireNanos. The delay is worked out afresh from the anchor for
+     * every run, so time spent dispatching and running does not add up from one period to the next.
+     */
+    private void enqueueAtRate() {
+        queue.enqueue(this, TimeUnit.NANOSECONDS.toMillis(nextFireNanos - System.nanoTime()));
+    }
+
+    private void advanceRate() {
+        long periodNanos = TimeUnit.MILLISECONDS.toNanos(reschedulePeriod);
+        nextFireNanos += periodNanos;
+        if (OverrunPolicy.CONCURRENT.equals(overrunPolicy))
+            return;
+        long lateNanos = System.nanoTime() - nextFireNanos;
+        if (lateNanos < 0)
+            return;
+        if (OverrunPolicy.SKIP.equals(overrunPolicy)) {
+            long missed = lateNanos / periodNanos + 1;
+            nextFireNanos += missed * periodNanos;
+            overruns.addAndGet(missed);
+            queue.metrics().overrun(missed);
+        } else {
+            overruns.incrementAndGet();
+            queue.metrics().overrun(1);
+        }
     }
 
-        @Override
+    @Override
     public int compareTo(Job o) {
         return this.startTime.compareTo(o.startTime);
     }
 
     @Override
     public void run() {
+        SchedulerMetrics metrics = queue.metrics();
+        long startNanos = System.nanoTime();
+        // cancelled after it was handed to a worker
+        if (cancelled) {
+            metrics.removed();
+            return;
+        }
+        metrics.started(jobType, startNanos - dueNanos);
         if (JobType.FIXED_RATE.equals(jobType)) {
-            Scheduler.getInstance().scheduledAtFixedRate(this.task, reschedulePeriod, reschedulePeriod);
+            if (OverrunPolicy.CONCURRENT.equals(overrunPolicy)) {
+                advanceRate();
+                enqueueAtRate();
+            }
+            if (inFlight.incrementAndGet() > 1) {
+                overruns.incrementAndGet();
+                metrics.overrun(1);
+            }
+        } else if (JobType.CRON.equals(jobType)) {
+            // from the fire time this run was due at, so an early wake-up cannot fire a minute twice
+            enqueueCron(startTime.getTime());
         }
 
-        System.out.println("Executing job: " + jobType);
         try {
             task.run();
         } finally {
+            metrics.finished(System.nanoTime() - startNanos);
             if (JobType.FIXED_DELAY.equals(jobType)) {
-                Scheduler.getInstance().scheduledWithFixedDelay(this.task, reschedulePeriod, reschedulePeriod);
+                queue.enqueue(this, reschedulePeriod);
+            } else if (JobType.FIXED_RATE.equals(jobType)) {
+                inFlight.decrementAndGet();
+                // the next run waits for this one; it is only enqueued now
+                if (!OverrunPolicy.CONCURRENT.equals(overrunPolicy)) {
+                    advanceRate();
+                    enqueueAtRate();
+                }
+            } else if (JobType.ONCE.equals(jobType)) {
+                done = true;
             }
         }
     }
 }
 
+/**
+ * Binary min-heap of jobs by start time. Each job keeps its own index in the heap, so removing a
+ * cancelled or rescheduled job is O(log n) instead of a scan. Guarded by the scheduler's queueLock.
+ */
+class JobHeap {
+
+    private Job[] jobs = new Job[16];
+    private int size;
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    Job peek() {
+        return size == 0 ? null : jobs[0];
+    }
+
+    void add(Job job) {
+        if (size == jobs.length)
+            jobs = Arrays.copyOf(jobs, size * 2);
+        jobs[size] = job;
+        job.heapIndex = size;
+        siftUp(size++);
+    }
+
+    Job poll() {
+        if (size == 0)
+            return null;
+        Job head = jobs[0];
+        removeAt(0);
+        return head;
+    }
+
+    /**
+     * Returns false if the job is not in the heap.
+     */
+    boolean remove(Job job) {
+        int index = job.heapIndex;
+        if (index < 0 || index >= size || jobs[index] != job)
+            return false;
+        removeAt(index);
+        return true;
+    }
+
+    private void removeAt(int index) {
+        Job removed = jobs[index];
+        removed.heapIndex = -1;
+        Job last = jobs[--size];
+        jobs[size] = null;
+        if (index == size)
+            return;
+        jobs[index] = last;
+        last.heapIndex = index;
+        siftDown(index);
+        if (jobs[index] == last)
+            siftUp(index);
+    }
+
+    private void siftUp(int index) {
+        Job job = jobs[index];
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (jobs[parent].compareTo(job) <= 0)
+                break;
+            move(jobs[parent], index);
+            index = parent;
+        }
+        move(job, index);
+    }
+
+    private void siftDown(int index) {
+        Job job = jobs[index];
+        int half = size >>> 1;
+        while (index < half) {
+            int child = 2 * index + 1;
+            if (child + 1 < size && jobs[child + 1].compareTo(jobs[child]) < 0)
+                child++;
+            if (job.compareTo(jobs[child]) <= 0)
+                break;
+            move(jobs[child], index);
+            index = child;
+        }
+        move(job, index);
+    }
+
+    private void move(Job job, int index) {
+        jobs[index] = job;
+        job.heapIndex = index;
+    }
+}
+
+/**
+ * What a fixed rate job does when a run takes longer than its period. CONCURRENT starts the next run
+ * on time regardless, so runs can overlap. QUEUE starts it as soon as the late one finishes, catching
+ * up on the missed runs back to back. SKIP drops the missed runs and resumes at the next slot.
+ */
+enum OverrunPolicy {
+    SKIP,
+    QUEUE,
+    CONCURRENT
+}
+
+/**
+ * Execution lane of a job, most urgent first. See ExecutionLanes.
+ */
+enum JobPriority {
+    CRITICAL,
+    NORMAL,
+    BULK
+}
+
 enum JobType {
     ONCE,
     FIXED_RATE,
-    FIXED_DELAY
+    FIXED_DELAY,
+    CRON
 }
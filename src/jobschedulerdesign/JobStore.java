@@ -0,0 +1,308 @@
+package jobschedulerdesign;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Durable record of the pending jobs: an append-only journal of schedule, fire and cancel events plus
+ * a snapshot of the pending set. Events are buffered and written and forced to disk by a background
+ * flush every FLUSH_INTERVAL_IN_MS, so a crash loses at most that much. Once the journal holds many
+ * more records than there are pending jobs, the flush writes a snapshot instead and empties the
+ * journal. Every record carries a sequence number, so journal records already covered by the
+ * snapshot are skipped if a crash comes between the two steps.
+ * Record: length(4) crc(4) op(1) seq(8) jobId taskName jobType(1) nextFireAt(8) period(8), with the
+ * strings as a length(2) and their UTF-8 bytes.
+ * Snapshot: seq(8) count(4) followed by one SCHEDULE record per pending job.
+ */
+class JobStore {
+
+    private static final long FLUSH_INTERVAL_IN_MS = 10;
+    private static final int MIN_RECORDS_BEFORE_SNAPSHOT = 100_000;
+    private static final int SNAPSHOT_RATIO = 2;
+    private static final byte SCHEDULE = 1;
+    private static final byte FIRE = 2;
+    private static final byte CANCEL = 3;
+    private static final int HEADER_SIZE = 8;
+    private static final JobType[] JOB_TYPES = JobType.values();
+
+    private final Path journalPath;
+    private final Path snapshotPath;
+    private final Map<String, JobRecord> pending;
+    private final ScheduledExecutorService flusher;
+    private final CRC32 crc;
+    private ByteBuffer scratch;
+    private ByteArrayOutputStream buffer;
+    private FileChannel journal;
+    private long seq;
+    private int journalRecords;
+    private boolean snapshotNeeded;
+
+    JobStore(Path journalPath) {
+        this.journalPath = journalPath;
+        this.snapshotPath = journalPath.resolveSibling(journalPath.getFileName() + ".snapshot");
+        this.pending = new HashMap<>();
+        this.scratch = ByteBuffer.allocate(256);
+        this.crc = new CRC32();
+        this.buffer = new ByteArrayOutputStream();
+        try {
+            long snapshotSeq = loadSnapshot();
+            long validLength = loadJournal(snapshotSeq);
+            journal = FileChannel.open(journalPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            // drop a record torn by a crash mid-write before appending after it
+            journal.truncate(validLength);
+            journal.position(validLength);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        this.flusher = Executors.newSingleThreadScheduledExecutor();
+        flusher.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL_IN_MS, FLUSH_INTERVAL_IN_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * The jobs that were pending when the store was last closed or crashed.
+     */
+    synchronized Collection<JobRecord> pending() {
+        return new ArrayList<>(pending.values());
+    }
+
+    void scheduled(JobRecord record) {
+        append(SCHEDULE, record);
+    }
+
+    /**
+     * A one time job is done once fired; a recurring one moves on to record.nextFireAt.
+     */
+    void fired(JobRecord record) {
+        append(FIRE, record);
+    }
+
+    void cancelled(JobRecord record) {
+        append(CANCEL, record);
+    }
+
+    /**
+     * Has the next flush write a snapshot, so the following startup does not replay the journal.
+     */
+    synchronized void checkpoint() {
+        snapshotNeeded = true;
+    }
+
+    void close() {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        try {
+            journal.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private synchronized void append(byte op, JobRecord record) {
+        seq++;
+        apply(op, record.copy());
+        journalRecords++;
+        encode(op, seq, record, buffer);
+    }
+
+    private void apply(byte op, JobRecord record) {
+        if (op == CANCEL || (op == FIRE && record.jobType == JobType.ONCE))
+            pending.remove(record.jobId);
+        else
+            pending.put(record.jobId, record);
+    }
+
+    private void flush() {
+        byte[] records;
+        byte[] snapshot = null;
+        synchronized (this) {
+            records = buffer.toByteArray();
+            buffer = new ByteArrayOutputStream();
+            if (snapshotNeeded || (journalRecords >= MIN_RECORDS_BEFORE_SNAPSHOT
+                    && journalRecords >= SNAPSHOT_RATIO * pending.size())) {
+                snapshot = encodeSnapshot();
+                journalRecords = 0;
+                snapshotNeeded = false;
+            }
+        }
+
+        try {
+            if (snapshot != null) {
+                // the snapshot already covers the buffered records
+                writeSnapshot(snapshot);
+                journal.truncate(0);
+                journal.position(0);
+                journal.force(false);
+            } else if (records.length > 0) {
+                write(journal, ByteBuffer.wrap(records));
+                journal.force(false);
+            }
+        } catch (IOException e) {
+            // a failed flush must not cancel the schedule; the pending set is still complete in memory, so
+            // the next flush writes it out as a snapshot
+            System.out.println(e);
+            synchronized (this) {
+                snapshotNeeded = true;
+            }
+        }
+    }
+
+    private byte[] encodeSnapshot() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(pending.size() * 64 + 12);
+        ByteBuffer header = ByteBuffer.allocate(12);
+        header.putLong(seq).putInt(pending.size());
+        out.write(header.array(), 0, 12);
+        for (JobRecord record : pending.values()) {
+            encode(SCHEDULE, seq, record, out);
+        }
+        return out.toByteArray();
+    }
+
+    private void writeSnapshot(byte[] snapshot) throws IOException {
+        Path temporary = snapshotPath.resolveSibling(snapshotPath.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            write(out, ByteBuffer.wrap(snapshot));
+            out.force(false);
+        }
+        Files.move(temporary, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private long loadSnapshot() throws IOException {
+        if (!Files.exists(snapshotPath))
+            return 0;
+        ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(snapshotPath));
+        long snapshotSeq = in.getLong();
+        int count = in.getInt();
+        for (int i=0; i<count; i++) {
+            JobRecord record = new JobRecord();
+            if (decode(in, record) < 0)
+                throw new IOException("Corrupt job snapshot " + snapshotPath);
+            pending.put(record.jobId, record);
+        }
+        seq = snapshotSeq;
+        return snapshotSeq;
+    }
+
+    private long loadJournal(long snapshotSeq) throws IOException {
+        if (!Files.exists(journalPath))
+            return 0;
+        ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(journalPath));
+        while (true) {
+            JobRecord record = new JobRecord();
+            int op = decode(in, record);
+            if (op < 0)
+                break;
+            if (record.seq <= snapshotSeq)
+                continue;
+            seq = record.seq;
+            apply((byte) op, record);
+            journalRecords++;
+        }
+        return in.position();
+    }
+
+    private void encode(byte op, long seq, JobRecord record, ByteArrayOutputStream out) {
+        byte[] jobId = record.jobId.getBytes(StandardCharsets.UTF_8);
+        byte[] taskName = record.taskName.getBytes(StandardCharsets.UTF_8);
+        int length = 1 + 8 + 2 + jobId.length + 2 + taskName.length + 1 + 8 + 8;
+        if (scratch.capacity() < HEADER_SIZE + length)
+            scratch = ByteBuffer.allocate(HEADER_SIZE + length);
+        scratch.clear();
+        scratch.position(HEADER_SIZE);
+        scratch.put(op).putLong(seq);
+        scratch.putShort((short) jobId.length).put(jobId);
+        scratch.putShort((short) taskName.length).put(taskName);
+        scratch.put((byte) record.jobType.ordinal()).putLong(record.nextFireAt).putLong(record.period);
+        crc.reset();
+        crc.update(scratch.array(), HEADER_SIZE, length);
+        scratch.putInt(0, length).putInt(4, (int) crc.getValue());
+        out.write(scratch.array(), 0, HEADER_SIZE + length);
+    }
+
+    /**
+     * Returns the record's op, or -1 at the end of the data or at a torn or corrupt record.
+     */
+    private int decode(ByteBuffer in, JobRecord record) {
+        if (in.remaining() < HEADER_SIZE)
+            return -1;
+        int length = in.getInt(in.position());
+        int expectedCrc = in.getInt(in.position() + 4);
+        if (length <= 0 || length > in.remaining() - HEADER_SIZE)
+            return -1;
+        int offset = in.arrayOffset() + in.position() + HEADER_SIZE;
+        crc.reset();
+        crc.update(in.array(), offset, length);
+        if ((int) crc.getValue() != expectedCrc)
+            return -1;
+        in.position(in.position() + HEADER_SIZE);
+        int op = in.get();
+        record.seq = in.getLong();
+        record.jobId = readString(in);
+        record.taskName = readString(in);
+        record.jobType = JOB_TYPES[in.get()];
+        record.nextFireAt = in.getLong();
+        record.period = in.getLong();
+        return op;
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getShort();
+        String value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return value;
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
+
+/**
+ * What is persisted for a job. The task itself is not: it is looked up by name on recovery.
+ * nextFireAt is wall-clock time, so it stays meaningful across restarts.
+ */
+class JobRecord {
+    String jobId;
+    String taskName;
+    JobType jobType;
+    volatile long nextFireAt;
+    long period;
+    long seq;
+
+    JobRecord() {
+    }
+
+    JobRecord(String jobId, String taskName, JobType jobType, long nextFireAt, long period) {
+        this.jobId = jobId;
+        this.taskName = taskName;
+        this.jobType = jobType;
+        this.nextFireAt = nextFireAt;
+        this.period = period;
+    }
+
+    JobRecord copy() {
+        return new JobRecord(jobId, taskName, jobType, nextFireAt, period);
+    }
+}
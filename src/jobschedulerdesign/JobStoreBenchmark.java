@@ -0,0 +1,66 @@
+package jobschedulerdesign;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/***
+ * Recovery time of the durable scheduler for a large number of pending jobs, first replaying them
+ * from the journal and then loading them from a snapshot.
+ * Run with: java jobschedulerdesign.JobStoreBenchmark [jobs]
+ */
+public class JobStoreBenchmark {
+
+    private static final long DELAY_IN_MS = TimeUnit.HOURS.toMillis(1);
+
+    public static void main(String[] args) throws IOException {
+        int nJobs = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        Path journal = Files.createTempFile("jobs", ".journal");
+        Map<String, Runnable> tasks = Collections.singletonMap("noop", () -> {});
+
+        schedule(journal, tasks, nJobs);
+        recover(journal, tasks, "journal replay", true);
+        recover(journal, tasks, "snapshot load", false);
+
+        Files.deleteIfExists(journal);
+        Files.deleteIfExists(journal.resolveSibling(journal.getFileName() + ".snapshot"));
+    }
+
+    private static void schedule(Path journal, Map<String, Runnable> tasks, int nJobs) throws IOException {
+        TimingWheelScheduler engine = new TimingWheelScheduler(1);
+        JobStore store = new JobStore(journal);
+        DurableScheduler scheduler = new DurableScheduler(engine, store, tasks, MissedFirePolicy.COALESCE);
+        long start = System.nanoTime();
+        for (int i=0; i<nJobs; i++) {
+            if (i % 2 == 0)
+                scheduler.schedule("noop", DELAY_IN_MS + i);
+            else
+                scheduler.scheduledAtFixedRate("noop", DELAY_IN_MS + i, DELAY_IN_MS);
+        }
+        long scheduled = System.nanoTime() - start;
+        store.close();
+        engine.shutdown();
+        System.out.printf("%d jobs scheduled durably in %d ms, journal %d MB%n", nJobs,
+                TimeUnit.NANOSECONDS.toMillis(scheduled), Files.size(journal) >> 20);
+    }
+
+    private static void recover(Path journal, Map<String, Runnable> tasks, String from, boolean checkpoint) {
+        System.gc();
+        long start = System.nanoTime();
+        JobStore store = new JobStore(journal);
+        long loaded = System.nanoTime() - start;
+        TimingWheelScheduler engine = new TimingWheelScheduler(1);
+        new DurableScheduler(engine, store, tasks, MissedFirePolicy.COALESCE);
+        long recovered = System.nanoTime() - start;
+        engine.shutdown();
+        if (checkpoint)
+            store.checkpoint();
+        store.close();
+        System.out.printf("%-15s read %d ms, rescheduled %d ms, total %d ms%n", from,
+                TimeUnit.NANOSECONDS.toMillis(loaded), TimeUnit.NANOSECONDS.toMillis(recovered - loaded),
+                TimeUnit.NANOSECONDS.toMillis(recovered));
+    }
+}
@@ -0,0 +1,90 @@
+package jobschedulerdesign;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/***
+ * Latency of critical jobs while a flood of bulk jobs comes due at the same instants. Bulk jobs
+ * block for a while, like jobs waiting on I/O, and arrive at twice the rate the pool can run them,
+ * so a backlog builds up. Critical lateness is measured on the same timing wheel engine with all
+ * jobs in one lane in fire order, with priority lanes but the bulk lane allowed every worker, and
+ * with the default lanes, which keep a worker free of bulk jobs. Fails if the critical p99 with the
+ * default lanes is above CRITICAL_P99_BOUND_IN_US, well under the length of one bulk job.
+ * Run with: java jobschedulerdesign.PriorityLanesDemo
+ */
+public class PriorityLanesDemo {
+
+    private static final int WORKERS = 4;
+    private static final long RUN_IN_MS = 3000;
+    private static final long BULK_JOB_IN_MS = 20;
+    private static final int BULK_JOBS_PER_BURST = 40;
+    private static final long BURST_EVERY_IN_MS = 100;
+    private static final long CRITICAL_EVERY_IN_MS = 25;
+    private static final long CRITICAL_P99_BOUND_IN_US = 5000;
+
+    public static void main(String[] args) throws InterruptedException {
+        System.out.printf("%d workers; every %d ms %d bulk jobs of %d ms each; a critical job every %d ms%n",
+                WORKERS, BURST_EVERY_IN_MS, BULK_JOBS_PER_BURST, BULK_JOB_IN_MS, CRITICAL_EVERY_IN_MS);
+        System.out.printf("%-22s %14s %14s %14s%n", "lanes", "p50 late us", "p99 late us", "max late us");
+        run("no bulk jobs", new ExecutionLanes(WORKERS), JobPriority.CRITICAL, JobPriority.BULK, false);
+        run("one lane, fire order", new ExecutionLanes(WORKERS), JobPriority.NORMAL, JobPriority.NORMAL, true);
+        run("bulk lane uncapped", new ExecutionLanes(WORKERS).limit(JobPriority.BULK, WORKERS),
+                JobPriority.CRITICAL, JobPriority.BULK, true);
+        HistogramSnapshot lanes = run("default lanes", new ExecutionLanes(WORKERS), JobPriority.CRITICAL,
+                JobPriority.BULK, true);
+        if (lanes.p99 > CRITICAL_P99_BOUND_IN_US)
+            throw new RuntimeException("Critical p99 of " + lanes.p99 + " us under the bulk flood is above "
+                    + CRITICAL_P99_BOUND_IN_US + " us");
+        System.out.printf("critical p99 with the default lanes is within %d us%n", CRITICAL_P99_BOUND_IN_US);
+    }
+
+    private static HistogramSnapshot run(String name, ExecutionLanes lanes, JobPriority critical, JobPriority bulk,
+                            boolean flood) throws InterruptedException {
+        TimingWheelScheduler scheduler = new TimingWheelScheduler(lanes);
+        LatencyHistogram lateness = new LatencyHistogram();
+        int nCritical = (int) (RUN_IN_MS / CRITICAL_EVERY_IN_MS);
+        CountDownLatch criticalDone = new CountDownLatch(nCritical);
+        boolean[] stop = new boolean[1];
+
+        for (int i=1; i<=nCritical; i++) {
+            long delayInMs = i * CRITICAL_EVERY_IN_MS;
+            long dueNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayInMs);
+            scheduler.schedule(() -> {
+                lateness.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - dueNanos));
+                criticalDone.countDown();
+            }, delayInMs, critical);
+        }
+        if (flood) {
+            Runnable bulkJob = () -> {
+                synchronized (stop) {
+                    if (stop[0])
+                        return;
+                }
+                sleep(BULK_JOB_IN_MS);
+            };
+            for (long delayInMs=0; delayInMs<RUN_IN_MS; delayInMs+=BURST_EVERY_IN_MS) {
+                for (int j=0; j<BULK_JOBS_PER_BURST; j++) {
+                    scheduler.schedule(bulkJob, delayInMs, bulk);
+                }
+            }
+        }
+
+        criticalDone.await();
+        // drop the bulk backlog rather than wait for it
+        synchronized (stop) {
+            stop[0] = true;
+        }
+        scheduler.shutdown();
+        HistogramSnapshot snapshot = lateness.snapshot();
+        System.out.printf("%-22s %14d %14d %14d%n", name, snapshot.p50, snapshot.p99, snapshot.max);
+        return snapshot;
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package jobschedulerdesign;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/***
+ * Schedule and fire throughput of the scheduler engines for a burst of short-delay one time jobs,
+ * submitted from as many producer threads as the engines have workers, and how late the jobs fired
+ * under that load.
+ * Run with: java jobschedulerdesign.SchedulerBenchmark [jobs] [threads] [maxDelayInMs]
+ */
+public class SchedulerBenchmark {
+
+    private static final long TIMEOUT_IN_SECONDS = 300;
+
+    public static void main(String[] args) throws InterruptedException {
+        int nJobs = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int nThreads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        int maxDelayInMs = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+
+        ShardedScheduler warmUp = new ShardedScheduler(nThreads);
+        run(warmUp, nJobs / 10, nThreads, maxDelayInMs);
+        warmUp.shutdown();
+
+        System.out.printf("%d jobs, %d threads, delays up to %d ms%n", nJobs, nThreads, maxDelayInMs);
+        System.out.printf("%-14s %16s %14s %16s %12s %12s %12s%n", "engine", "schedules/sec", "all fired ms",
+                "fired/sec", "p50 late us", "p99 late us", "max late us");
+        // the original engine is a singleton with its own fixed pool of three workers
+        IScheduler scheduler = Scheduler.getInstance();
+        report("priority-queue", nJobs, run(scheduler, nJobs, nThreads, maxDelayInMs), scheduler.metrics());
+        TimingWheelScheduler wheel = new TimingWheelScheduler(nThreads);
+        report("timing-wheel", nJobs, run(wheel, nJobs, nThreads, maxDelayInMs), wheel.metrics());
+        wheel.shutdown();
+        ShardedScheduler sharded = new ShardedScheduler(nThreads);
+        report("sharded", nJobs, run(sharded, nJobs, nThreads, maxDelayInMs), sharded.metrics());
+        sharded.shutdown();
+        // the singleton's threads never stop
+        System.exit(0);
+    }
+
+    private static long[] run(IScheduler scheduler, int nJobs, int nProducers, int maxDelayInMs)
+            throws InterruptedException {
+        CountDownLatch fired = new CountDownLatch(nJobs);
+        Runnable task = fired::countDown;
+        List<Thread> producers = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int p=0; p<nProducers; p++) {
+            int jobs = nJobs / nProducers + (p < nJobs % nProducers ? 1 : 0);
+            Thread producer = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i=0; i<jobs; i++) {
+                    scheduler.schedule(task, random.nextInt(maxDelayInMs + 1));
+                }
+            });
+            producer.start();
+            producers.add(producer);
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        long scheduled = System.nanoTime() - start;
+        if (!fired.await(TIMEOUT_IN_SECONDS, TimeUnit.SECONDS))
+            throw new RuntimeException("Timed out with " + fired.getCount() + " jobs not fired");
+        return new long[]{scheduled, System.nanoTime() - start};
+    }
+
+    private static void report(String engine, int nJobs, long[] result, SchedulerMetrics metrics) {
+        HistogramSnapshot lateness = metrics.snapshot().lateness.get(JobType.ONCE);
+        System.out.printf("%-14s %16.0f %14d %16.0f %12d %12d %12d%n", engine, nJobs * 1e9 / result[0],
+                TimeUnit.NANOSECONDS.toMillis(result[1]), nJobs * 1e9 / result[1], lateness.p50, lateness.p99,
+                lateness.max);
+    }
+}
@@ -0,0 +1,294 @@
+package jobschedulerdesign;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.ObjectName;
+
+/***
+ * Counters and histograms of one scheduler engine. Lateness is how long after its due time a job
+ * started running, so it covers both the wait for the dispatcher and the wait for a free worker.
+ * A job is pending from being enqueued until it starts running or is cancelled. Recording is lock
+ * free, so jobs on every worker can record at once.
+ */
+class SchedulerMetrics implements SchedulerMetricsMBean {
+
+    private final int workers;
+    private final Map<JobType, LatencyHistogram> lateness;
+    private final LatencyHistogram duration;
+    private final LongAdder pending;
+    private final AtomicInteger running;
+    private final LongAdder completed;
+    private final LongAdder rejected;
+    private final LongAdder overruns;
+
+    SchedulerMetrics(int workers) {
+        this.workers = workers;
+        this.lateness = new EnumMap<>(JobType.class);
+        for (JobType jobType : JobType.values()) {
+            lateness.put(jobType, new LatencyHistogram());
+        }
+        this.duration = new LatencyHistogram();
+        this.pending = new LongAdder();
+        this.running = new AtomicInteger();
+        this.completed = new LongAdder();
+        this.rejected = new LongAdder();
+        this.overruns = new LongAdder();
+    }
+
+    void enqueued() {
+        pending.increment();
+    }
+
+    /**
+     * The job left the queue without running, because it was cancelled or is being moved.
+     */
+    void removed() {
+        pending.decrement();
+    }
+
+    void started(JobType jobType, long latenessInNanos) {
+        pending.decrement();
+        running.incrementAndGet();
+        lateness.get(jobType).record(TimeUnit.NANOSECONDS.toMicros(latenessInNanos));
+    }
+
+    void finished(long durationInNanos) {
+        running.decrementAndGet();
+        completed.increment();
+        duration.record(TimeUnit.NANOSECONDS.toMicros(durationInNanos));
+    }
+
+    void rejected() {
+        pending.decrement();
+        rejected.increment();
+    }
+
+    void overrun(long runs) {
+        overruns.add(runs);
+    }
+
+    MetricsSnapshot snapshot() {
+        Map<JobType, HistogramSnapshot> latenessByType = new EnumMap<>(JobType.class);
+        for (Map.Entry<JobType, LatencyHistogram> entry : lateness.entrySet()) {
+            latenessByType.put(entry.getKey(), entry.getValue().snapshot());
+        }
+        return new MetricsSnapshot(latenessByType, duration.snapshot(), pending.sum(), running.get(), workers,
+                completed.sum(), rejected.sum(), overruns.sum());
+    }
+
+    /**
+     * Exposes the metrics on the platform MBean server as jobschedulerdesign:type=Scheduler,name=name.
+     */
+    void registerMBean(String name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                    new ObjectName("jobschedulerdesign:type=Scheduler,name=" + ObjectName.quote(name)));
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public long getPending() {
+        return pending.sum();
+    }
+
+    @Override
+    public int getRunning() {
+        return running.get();
+    }
+
+    @Override
+    public int getWorkers() {
+        return workers;
+    }
+
+    @Override
+    public long getCompleted() {
+        return completed.sum();
+    }
+
+    @Override
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    @Override
+    public long getOverruns() {
+        return overruns.sum();
+    }
+
+    @Override
+    public long getLatenessP99Micros() {
+        LatencyHistogram all = new LatencyHistogram();
+        for (LatencyHistogram histogram : lateness.values()) {
+            all.add(histogram);
+        }
+        return all.percentile(99);
+    }
+
+    @Override
+    public long getDurationP99Micros() {
+        return duration.percentile(99);
+    }
+
+    @Override
+    public long latenessPercentileMicros(String jobType, double percentile) {
+        return lateness.get(JobType.valueOf(jobType)).percentile(percentile);
+    }
+}
+
+/**
+ * Log-linear histogram of non-negative values: exact below 16, and in 16 sub-buckets per power of two
+ * above, so a percentile is within about 6% of the true value. 960 counters cover any long.
+ */
+class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final AtomicLongFieldUpdater<LatencyHistogram> MAX =
+            AtomicLongFieldUpdater.newUpdater(LatencyHistogram.class, "max");
+
+    private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BUCKET_BITS) * SUB_BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private volatile long max;
+
+    /**
+     * Negative values, such as a job started a little before its due time, count as 0.
+     */
+    void record(long value) {
+        value = Math.max(value, 0);
+        counts.incrementAndGet(indexOf(value));
+        count.increment();
+        sum.add(value);
+        long seen = max;
+        while (value > seen && !MAX.compareAndSet(this, seen, value)) {
+            seen = max;
+        }
+    }
+
+    void add(LatencyHistogram other) {
+        for (int i=0; i<counts.length(); i++) {
+            long n = other.counts.get(i);
+            if (n > 0)
+                counts.addAndGet(i, n);
+        }
+        count.add(other.count.sum());
+        sum.add(other.sum.sum());
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * Upper bound of the bucket holding the given percentile, capped at the largest value recorded.
+     */
+    long percentile(double percentile) {
+        long total = 0;
+        for (int i=0; i<counts.length(); i++) {
+            total += counts.get(i);
+        }
+        if (total == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i=0; i<counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank)
+                return Math.min(upperBoundOf(i), max);
+        }
+        return max;
+    }
+
+    HistogramSnapshot snapshot() {
+        long n = count.sum();
+        return new HistogramSnapshot(n, n == 0 ? 0 : sum.sum() / n, percentile(50), percentile(90),
+                percentile(99), percentile(99.9), max);
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long upperBoundOf(int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return ((long) (SUB_BUCKETS + index % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS)) + width - 1;
+    }
+}
+
+class HistogramSnapshot {
+    final long count;
+    final long mean;
+    final long p50;
+    final long p90;
+    final long p99;
+    final long p999;
+    final long max;
+
+    HistogramSnapshot(long count, long mean, long p50, long p90, long p99, long p999, long max) {
+        this.count = count;
+        this.mean = mean;
+        this.p50 = p50;
+        this.p90 = p90;
+        this.p99 = p99;
+        this.p999 = p999;
+        this.max = max;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d mean=%dus p50=%dus p90=%dus p99=%dus p99.9=%dus max=%dus",
+                count, mean, p50, p90, p99, p999, max);
+    }
+}
+
+/**
+ * Point in time copy of an engine's metrics. Histogram values are in microseconds.
+ */
+class MetricsSnapshot {
+    final Map<JobType, HistogramSnapshot> lateness;
+    final HistogramSnapshot duration;
+    final long pending;
+    final int running;
+    final int workers;
+    final long completed;
+    final long rejected;
+    final long overruns;
+
+    MetricsSnapshot(Map<JobType, HistogramSnapshot> lateness, HistogramSnapshot duration, long pending, int running,
+                    int workers, long completed, long rejected, long overruns) {
+        this.lateness = lateness;
+        this.duration = duration;
+        this.pending = pending;
+        this.running = running;
+        this.workers = workers;
+        this.completed = completed;
+        this.rejected = rejected;
+        this.overruns = overruns;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder();
+        out.append(String.format("pending=%d running=%d/%d completed=%d rejected=%d overruns=%d%n",
+                pending, running, workers, completed, rejected, overruns));
+        for (Map.Entry<JobType, HistogramSnapshot> entry : lateness.entrySet()) {
+            if (entry.getValue().count > 0)
+                out.append("lateness ").append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+        }
+        out.append("duration: ").append(duration);
+        return out.toString();
+    }
+}
@@ -0,0 +1,16 @@
+package jobschedulerdesign;
+
+/**
+ * JMX view of SchedulerMetrics. Times are in microseconds.
+ */
+public interface SchedulerMetricsMBean {
+    long getPending();
+    int getRunning();
+    int getWorkers();
+    long getCompleted();
+    long getRejected();
+    long getOverruns();
+    long getLatenessP99Micros();
+    long getDurationP99Micros();
+    long latenessPercentileMicros(String jobType, double percentile);
+}
@@ -0,0 +1,296 @@
+package jobschedulerdesign;
+
+import java.util.Date;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/***
+ * Scheduler engine with one time-ordered queue per worker thread. Producers place each job on a
+ * random worker's queue, and a recurring job goes back to the queue of the worker that ran it, so
+ * there is no lock shared by every schedule and dispatch. Each worker runs its own due jobs. A worker
+ * with nothing due steals due jobs from the others, so one stuck in a long job does not hold up the
+ * jobs queued behind it. Jobs fire in start-time order within a queue, and close to it across queues.
+ */
+class ShardedScheduler implements IScheduler, IJobQueue {
+
+    private final WorkerQueue[] queues;
+    private final AtomicLong wakeups;
+    private final SchedulerMetrics metrics;
+    private volatile boolean running;
+
+    ShardedScheduler(int nThread) {
+        this.queues = new WorkerQueue[nThread];
+        this.wakeups = new AtomicLong(0);
+        this.metrics = new SchedulerMetrics(nThread);
+        this.running = true;
+        for (int i=0; i<nThread; i++) {
+            queues[i] = new WorkerQueue();
+        }
+        for (int i=0; i<nThread; i++) {
+            new SchedulerWorker(this, queues[i], "scheduler-worker-" + i).start();
+        }
+    }
+
+    @Override
+    public ScheduledHandle schedule(Runnable task, long delayInMs, JobPriority priority) {
+        if (priority == null)
+            throw new RuntimeException("Invalid input");
+        Job job = new Job(UUID.randomUUID().toString(), task, JobType.ONCE, this);
+        // workers run their own queue in time order, so the priority is recorded but has no lane here
+        job.priority = priority;
+        enqueue(job, delayInMs);
+        return new ScheduledHandle(job);
+    }
+
+    @Override
+    public ScheduledHandle scheduledAtFixedRate(Runnable task, long delayInMs, long recurringDelayInMs,
+                                                OverrunPolicy overrunPolicy) {
+        Job job = new Job(UUID.randomUUID().toString(), task, recurringDelayInMs, overrunPolicy, this);
+        job.anchor(delayInMs);
+        enqueue(job, delayInMs);
+        return new ScheduledHandle(job);
+    }
+
+    @Override
+    public ScheduledHandle scheduledWithFixedDelay(Runnable task, long delayInMs, long recurringDelayInMs) {
+        Job job = new Job(UUID.randomUUID().toString(), task, recurringDelayInMs, JobType.FIXED_DELAY, this);
+        enqueue(job, delayInMs);
+        return new ScheduledHandle(job);
+    }
+
+    @Override
+    public ScheduledHandle scheduleCron(Runnable task, String cron) {
+        Job job = new Job(UUID.randomUUID().toString(), task, CronExpression.compile(cron), this);
+        job.enqueueCron(System.currentTimeMillis());
+        // the expression never matches
+        if (job.done)
+            throw new RuntimeException("Invalid input");
+        return new ScheduledHandle(job);
+    }
+
+    @Override
+    public void enqueue(Job job, long delayInMs) {
+        WorkerQueue queue = queueForCurrentThread();
+        boolean newHead;
+        queue.lock.lock();
+        try {
+            if (job.cancelled)
+                return;
+            job.startTime = new Date(System.currentTimeMillis() + delayInMs);
+            job.dueNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayInMs);
+            job.workerQueue = queue;
+            queue.jobs.add(job);
+            metrics.enqueued();
+            newHead = queue.jobs.peek() == job;
+            if (newHead)
+                queue.entryAdded.signal();
+        } finally {
+            queue.lock.unlock();
+        }
+        // the owner will not look at its queue until its current job finishes
+        if (newHead && queue.busy)
+            wakeIdleWorker();
+    }
+
+    @Override
+    public boolean cancel(Job job) {
+        while (true) {
+            WorkerQueue queue = job.workerQueue;
+            queue.lock.lock();
+            try {
+                // re-enqueued on another worker's queue since it was read: lock that one instead
+                if (job.workerQueue != queue)
+                    continue;
+                if (job.cancelled || job.done)
+                    return false;
+                job.cancelled = true;
+                if (queue.jobs.remove(job))
+                    metrics.removed();
+                return true;
+            } finally {
+                queue.lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public boolean reschedule(Job job, long delayInMs) {
+        while (true) {
+            WorkerQueue queue = job.workerQueue;
+            queue.lock.lock();
+            try {
+                if (job.workerQueue != queue)
+                    continue;
+                if (job.cancelled || !queue.jobs.remove(job))
+                    return false;
+                metrics.removed();
+            } finally {
+                queue.lock.unlock();
+            }
+            enqueue(job, delayInMs);
+            return true;
+        }
+    }
+
+    @Override
+    public SchedulerMetrics metrics() {
+        return metrics;
+    }
+
+    void shutdown() {
+        running = false;
+        for (WorkerQueue queue : queues) {
+            queue.lock.lock();
+            try {
+                queue.entryAdded.signal();
+            } finally {
+                queue.lock.unlock();
+            }
+        }
+    }
+
+    void work(WorkerQueue own) {
+        while (running) {
+            long seenWakeups = wakeups.get();
+            Job job = pollDue(own, false);
+            if (job == null)
+                job = steal(own);
+            if (job != null) {
+                own.busy = true;
+                try {
+                    job.run();
+                } catch (RuntimeException e) {
+                    System.out.println(e);
+                } finally {
+                    own.busy = false;
+                }
+                continue;
+            }
+            idle(own, seenWakeups);
+        }
+    }
+
+    private Job steal(WorkerQueue own) {
+        int start = ThreadLocalRandom.current().nextInt(queues.length);
+        for (int i=0; i<queues.length; i++) {
+            WorkerQueue victim = queues[(start + i) % queues.length];
+            if (victim == own)
+                continue;
+            Job job = pollDue(victim, true);
+            if (job != null)
+                return job;
+        }
+        return null;
+    }
+
+    /**
+     * When stealing, a queue whose lock is taken is skipped rather than waited for.
+     */
+    private Job pollDue(WorkerQueue queue, boolean stealing) {
+        if (stealing) {
+            if (!queue.lock.tryLock())
+                return null;
+        } else {
+            queue.lock.lock();
+        }
+        try {
+            Job head = queue.jobs.peek();
+            if (head == null || head.startTime.getTime() > System.currentTimeMillis())
+                return null;
+            return queue.jobs.poll();
+        } finally {
+            queue.lock.unlock();
+        }
+    }
+
+    /**
+     * Sleeps until the earliest job in any queue is due, or until woken to steal. A wake-up that
+     * lands between the scan and the wait shows up as a changed wakeups count, and the worker scans
+     * again instead of sleeping through it.
+     */
+    private void idle(WorkerQueue own, long seenWakeups) {
+        long wakeAt = Long.MAX_VALUE;
+        for (WorkerQueue queue : queues) {
+            if (queue == own)
+                continue;
+            queue.lock.lock();
+            try {
+                Job head = queue.jobs.peek();
+                if (head != null)
+                    wakeAt = Math.min(wakeAt, head.startTime.getTime());
+            } finally {
+                queue.lock.unlock();
+            }
+        }
+
+        own.lock.lock();
+        try {
+            Job head = own.jobs.peek();
+            if (head != null)
+                wakeAt = Math.min(wakeAt, head.startTime.getTime());
+            if (!running || wakeups.get() != seenWakeups)
+                return;
+            if (wakeAt == Long.MAX_VALUE) {
+                own.entryAdded.await();
+            } else {
+                long delayInMs = wakeAt - System.currentTimeMillis();
+                if (delayInMs > 0)
+                    own.entryAdded.await(delayInMs, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            System.out.println(e);
+        } finally {
+            own.lock.unlock();
+        }
+    }
+
+    private void wakeIdleWorker() {
+        wakeups.incrementAndGet();
+        for (WorkerQueue queue : queues) {
+            if (queue.busy)
+                continue;
+            queue.lock.lock();
+            try {
+                queue.entryAdded.signal();
+            } finally {
+                queue.lock.unlock();
+            }
+            return;
+        }
+    }
+
+    private WorkerQueue queueForCurrentThread() {
+        Thread thread = Thread.currentThread();
+        if (thread instanceof SchedulerWorker && ((SchedulerWorker) thread).scheduler == this)
+            return ((SchedulerWorker) thread).queue;
+        return queues[ThreadLocalRandom.current().nextInt(queues.length)];
+    }
+}
+
+class WorkerQueue {
+    JobHeap jobs = new JobHeap();
+    Lock lock = new ReentrantLock();
+    Condition entryAdded = lock.newCondition();
+    volatile boolean busy;
+}
+
+class SchedulerWorker extends Thread {
+    ShardedScheduler scheduler;
+    WorkerQueue queue;
+
+    SchedulerWorker(ShardedScheduler scheduler, WorkerQueue queue, String name) {
+        super(name);
+        this.scheduler = scheduler;
+        this.queue = queue;
+    }
+
+    @Override
+    public void run() {
+        scheduler.work(queue);
+    }
+}
@@ -0,0 +1,342 @@
+package jobschedulerdesign;
+
+import java.util.Date;
+import java.util.PriorityQueue;
+import java.util.UUID;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/***
+ * Scheduler engine backed by a hierarchical timing wheel. Scheduling a job links it into the bucket
+ * of its tick in O(1), whatever the number of pending jobs. Only non-empty buckets are queued for the
+ * dispatcher, which sleeps until the earliest of them is due, so an idle scheduler uses no CPU.
+ * Deadlines are kept on the monotonic clock, in milliseconds since the scheduler was created.
+ */
+class TimingWheelScheduler implements IScheduler, IJobQueue {
+
+    private static final long TICK_IN_MS = 1;
+    private static final int WHEEL_SIZE = 512;
+
+    private final long originNanos;
+    private final TimingWheel wheel;
+    private final PriorityQueue<TimerBucket> dueBuckets;
+    private final Lock lock;
+    private final Condition entryAdded;
+    private final ExecutionLanes executor;
+    private final SchedulerMetrics metrics;
+    private final Thread dispatcher;
+    private volatile boolean running;
+
+    TimingWheelScheduler(int nThread) {
+        this(new ExecutionLanes(nThread));
+    }
+
+    /**
+     * Due jobs run on the given lanes, so their priority classes and limits apply.
+     */
+    TimingWheelScheduler(ExecutionLanes lanes) {
+        this.originNanos = System.nanoTime();
+        this.dueBuckets = new PriorityQueue<>();
+        this.wheel = new TimingWheel(TICK_IN_MS, WHEEL_SIZE, now(), dueBuckets);
+        this.lock = new ReentrantLock();
+        this.entryAdded = lock.newCondition();
+        this.executor = lanes;
+        this.metrics = new SchedulerMetrics(lanes.size());
+        this.running = true;
+        this.dispatcher = new Thread(this::dispatch, "timing-wheel-dispatcher");
+        dispatcher.start();
+    }
+
+    @Override
+    public ScheduledHandle schedule(Runnable task, long delayInMs, JobPriority priority) {
+        if (priority == null)
+            throw new RuntimeException("Invalid input");
+        Job job = new Job(UUID.randomUUID().toString(), task, JobType.ONCE, this);
+        job.priority = priority;
+        enqueue(job, delayInMs);
+        return new ScheduledHandle(job);
+    }
+
+    @Override
+    public ScheduledHandle scheduledAtFixedRate(Runnable task, long delayInMs, long recurringDelayInMs,
+                                                OverrunPolicy overrunPolicy) {
+        Job job = new Job(UUID.randomUUID().toString(), task, recurringDelayInMs, overrunPolicy, this);
+        job.anchor(delayInMs);
+        enqueue(job, delayInMs);
+        return new ScheduledHandle(job);
+    }
+
+    @Override
+    public ScheduledHandle scheduledWithFixedDelay(Runnable task, long delayInMs, long recurringDelayInMs) {
+        Job job = new Job(UUID.randomUUID().toString(), task, recurringDelayInMs, JobType.FIXED_DELAY, this);
+        enqueue(job, delayInMs);
+        return new ScheduledHandle(job);
+    }
+
+    @Override
+    public ScheduledHandle scheduleCron(Runnable task, String cron) {
+        Job job = new Job(UUID.randomUUID().toString(), task, CronExpression.compile(cron), this);
+        job.enqueueCron(System.currentTimeMillis());
+        // the expression never matches
+        if (job.done)
+            throw new RuntimeException("Invalid input");
+        return new ScheduledHandle(job);
+    }
+
+    @Override
+    public void enqueue(Job job, long delayInMs) {
+        TimerEntry entry = new TimerEntry(job, now() + Math.max(delayInMs, 0));
+        lock.lock();
+        try {
+            if (job.cancelled)
+                return;
+            job.startTime = dateAfter(delayInMs);
+            job.dueNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayInMs);
+            job.timerEntry = entry;
+            metrics.enqueued();
+            if (!wheel.add(entry)) {
+                execute(job);
+                return;
+            }
+            // only a new earliest bucket changes how long the dispatcher should sleep
+            if (dueBuckets.peek() == entry.bucket)
+                entryAdded.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Unlinks the job's entry from its bucket in O(1). A bucket left empty stays queued and is
+     * simply flushed with nothing in it.
+     */
+    @Override
+    public boolean cancel(Job job) {
+        lock.lock();
+        try {
+            if (job.cancelled || job.done)
+                return false;
+            job.cancelled = true;
+            TimerEntry entry = job.timerEntry;
+            if (entry != null && entry.bucket != null) {
+                entry.bucket.remove(entry);
+                metrics.removed();
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean reschedule(Job job, long delayInMs) {
+        lock.lock();
+        try {
+            TimerEntry entry = job.timerEntry;
+            if (job.cancelled || entry == null || entry.bucket == null)
+                return false;
+            entry.bucket.remove(entry);
+            metrics.removed();
+            enqueue(job, delayInMs);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public SchedulerMetrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * Stops the dispatcher; jobs that are still pending are dropped.
+     */
+    void shutdown() {
+        running = false;
+        dispatcher.interrupt();
+        executor.shutdown();
+    }
+
+    private void dispatch() {
+        lock.lock();
+        try {
+            while (running) {
+                TimerBucket next = dueBuckets.peek();
+                if (next == null) {
+                    entryAdded.await();
+                    continue;
+                }
+                long delayInNanos = TimeUnit.MILLISECONDS.toNanos(next.expiration) - (System.nanoTime() - originNanos);
+                if (delayInNanos > 0) {
+                    entryAdded.awaitNanos(delayInNanos);
+                    continue;
+                }
+                dueBuckets.poll();
+                wheel.advanceClock(next.expiration);
+                // entries from coarser wheels cascade into finer buckets; the rest are due now
+                next.flush(entry -> {
+                    if (!wheel.add(entry))
+                        execute(entry.job);
+                });
+            }
+        } catch (InterruptedException e) {
+            // shutdown
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void execute(Job job) {
+        try {
+            executor.execute(job);
+        } catch (RejectedExecutionException e) {
+            metrics.rejected();
+        }
+    }
+
+    private long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - originNanos);
+    }
+
+    private static Date dateAfter(long delayInMs) {
+        // Calendar.getInstance() would cost more than the whole insertion into the wheel
+        return new Date(System.currentTimeMillis() + delayInMs);
+    }
+}
+
+/**
+ * One level of the wheel: wheelSize buckets of tickMs each. Deadlines beyond its interval go to an
+ * overflow wheel whose tick is this wheel's whole interval, created on first use. Not thread safe;
+ * the scheduler's lock guards every level.
+ */
+class TimingWheel {
+
+    private final long tickMs;
+    private final int wheelSize;
+    private final long interval;
+    private final TimerBucket[] buckets;
+    private final PriorityQueue<TimerBucket> dueBuckets;
+    private long currentTime;
+    private TimingWheel overflowWheel;
+
+    TimingWheel(long tickMs, int wheelSize, long startMs, PriorityQueue<TimerBucket> dueBuckets) {
+        this.tickMs = tickMs;
+        this.wheelSize = wheelSize;
+        this.interval = tickMs * wheelSize;
+        this.dueBuckets = dueBuckets;
+        this.currentTime = startMs - (startMs % tickMs);
+        this.buckets = new TimerBucket[wheelSize];
+        for (int i=0; i<wheelSize; i++) {
+            buckets[i] = new TimerBucket();
+        }
+    }
+
+    /**
+     * Returns false, without adding it, if the entry is already due.
+     */
+    boolean add(TimerEntry entry) {
+        long deadline = entry.deadlineMs;
+        if (deadline < currentTime + tickMs)
+            return false;
+        if (deadline >= currentTime + interval) {
+            if (overflowWheel == null)
+                overflowWheel = new TimingWheel(interval, wheelSize, currentTime, dueBuckets);
+            return overflowWheel.add(entry);
+        }
+
+        long tick = deadline / tickMs;
+        TimerBucket bucket = buckets[(int) (tick % wheelSize)];
+        bucket.add(entry);
+        if (bucket.setExpiration(tick * tickMs))
+            dueBuckets.add(bucket);
+        return true;
+    }
+
+    void advanceClock(long timeMs) {
+        if (timeMs < currentTime + tickMs)
+            return;
+        currentTime = timeMs - (timeMs % tickMs);
+        if (overflowWheel != null)
+            overflowWheel.advanceClock(currentTime);
+    }
+}
+
+/**
+ * Entries of one tick in a doubly linked list around a sentinel. expiration is -1 while the bucket is
+ * not queued for the dispatcher.
+ */
+class TimerBucket implements Comparable<TimerBucket> {
+
+    long expiration;
+    private final TimerEntry root;
+
+    TimerBucket() {
+        this.expiration = -1;
+        this.root = new TimerEntry(null, -1);
+        root.next = root;
+        root.prev = root;
+    }
+
+    void add(TimerEntry entry) {
+        entry.bucket = this;
+        entry.prev = root.prev;
+        entry.next = root;
+        root.prev.next = entry;
+        root.prev = entry;
+    }
+
+    void remove(TimerEntry entry) {
+        entry.prev.next = entry.next;
+        entry.next.prev = entry.prev;
+        entry.prev = null;
+        entry.next = null;
+        entry.bucket = null;
+    }
+
+    /**
+     * Returns true if the expiration changed, meaning the bucket has to be queued again.
+     */
+    boolean setExpiration(long expiration) {
+        boolean changed = this.expiration != expiration;
+        this.expiration = expiration;
+        return changed;
+    }
+
+    void flush(Consumer<TimerEntry> action) {
+        TimerEntry entry = root.next;
+        root.next = root;
+        root.prev = root;
+        expiration = -1;
+        while (entry != root) {
+            TimerEntry next = entry.next;
+            entry.prev = null;
+            entry.next = null;
+            entry.bucket = null;
+            action.accept(entry);
+            entry = next;
+        }
+    }
+
+    @Override
+    public int compareTo(TimerBucket o) {
+        return Long.compare(expiration, o.expiration);
+    }
+}
+
+class TimerEntry {
+    Job job;
+    long deadlineMs;
+    TimerBucket bucket;
+    TimerEntry prev;
+    TimerEntry next;
+
+    TimerEntry(Job job, long deadlineMs) {
+        this.job = job;
+        this.deadlineMs = deadlineMs;
+    }
+}
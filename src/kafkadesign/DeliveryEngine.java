@@ -0,0 +1,155 @@
+package kafkadesign;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Runs delivery work for subscriptions. Tasks submitted for the same subscription run one at a time,
+ * in submission order.
+ */
+interface IDeliveryEngine {
+    void execute(Subscription subscription, Runnable task);
+    void shutdown();
+
+    /**
+     * Waits for the tasks accepted before shutdown to finish. Returns false on timeout.
+     */
+    boolean awaitTermination(long timeoutInMs) throws InterruptedException;
+
+    /**
+     * Runs the task once per subscription. Engines may combine them into fewer tasks as long as each
+     * subscription's tasks stay in order.
+     */
+    default void executeAll(List<Subscription> subscriptions, Consumer<Subscription> task) {
+        for (Subscription subscription : subscriptions) {
+            execute(subscription, () -> task.accept(subscription));
+        }
+    }
+}
+
+/**
+ * The original model: subscriptions are hashed onto a fixed set of single-thread executors, so
+ * subscriptions sharing a thread also share its queue.
+ */
+class HashedDeliveryEngine implements IDeliveryEngine {
+
+    private final HashBasedExecutor executor;
+
+    HashedDeliveryEngine(int nThreads) {
+        this.executor = new HashBasedExecutor(nThreads);
+    }
+
+    @Override
+    public void execute(Subscription subscription, Runnable task) {
+        executor.runAsync(subscription.deliveryKey, task);
+    }
+
+    /**
+     * One task per thread rather than per subscription: the subscriptions sharing a thread are run
+     * back to back, so a publish to a topic with many subscribers submits at most nThreads tasks.
+     */
+    @Override
+    public void executeAll(List<Subscription> subscriptions, Consumer<Subscription> task) {
+        Map<Integer, List<Subscription>> byThread = new HashMap<>();
+        for (Subscription subscription : subscriptions) {
+            byThread.computeIfAbsent(executor.indexFor(subscription.deliveryKey), i -> new ArrayList<>())
+                    .add(subscription);
+        }
+        byThread.forEach((index, batch) -> executor.runAsync(index, () -> {
+            for (Subscription subscription : batch) {
+                try {
+                    task.accept(subscription);
+                } catch (RuntimeException e) {
+                    // one failing subscriber must not starve the rest of the batch
+                    System.out.println(e);
+                }
+            }
+        }));
+    }
+
+    @Override
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeoutInMs) throws InterruptedException {
+        return executor.awaitTermination(timeoutInMs);
+    }
+}
+
+/**
+ * Every subscription gets its own mailbox, drained by at most one thread at a time, so a subscriber
+ * blocking in consume holds up nobody else. On a runtime with virtual threads each drain runs on a
+ * fresh virtual thread. Before that, it runs on a cached pool of platform threads, which starts a new
+ * thread whenever every existing one is busy: a blocked subscriber holds one thread, never a queue
+ * other mailboxes wait in. There are then as many threads as mailboxes being drained at once, at most
+ * one per subscription, and idle ones exit after a minute.
+ */
+class MailboxDeliveryEngine implements IDeliveryEngine {
+
+    private final ExecutorService executor;
+
+    MailboxDeliveryEngine() {
+        this.executor = newVirtualThreadExecutor();
+    }
+
+    @Override
+    public void execute(Subscription subscription, Runnable task) {
+        Mailbox mailbox = subscription.mailbox;
+        mailbox.tasks.add(task);
+        if (mailbox.running.compareAndSet(false, true))
+            executor.execute(() -> drain(mailbox));
+    }
+
+    @Override
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeoutInMs) throws InterruptedException {
+        return executor.awaitTermination(timeoutInMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void drain(Mailbox mailbox) {
+        while (true) {
+            Runnable task;
+            while ((task = mailbox.tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    System.out.println(e);
+                }
+            }
+            mailbox.running.set(false);
+            // a task added after the last poll but before running was cleared would otherwise be stranded
+            if (mailbox.tasks.isEmpty() || !mailbox.running.compareAndSet(false, true))
+                return;
+        }
+    }
+
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+}
+
+class Mailbox {
+    Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    AtomicBoolean running = new AtomicBoolean(false);
+}
@@ -0,0 +1,131 @@
+package kafkadesign;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/***
+ * Publish/consume of the same events delivered as decoded Events versus the RecordView flyweight.
+ * Reports allocation per event (summed over all threads) and GC activity for each run.
+ * Run with: java kafkadesign.EventEncodingBenchmark [events] [payloadBytes]
+ */
+public class EventEncodingBenchmark {
+
+    private static final int PARTITIONS = 4;
+    private static final int PUBLISH_BATCH = 1000;
+
+    public static void main(String[] args) throws InterruptedException {
+        int nEvents = args.length > 0 ? Integer.parseInt(args[0]) : 500_000;
+        int payloadBytes = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+
+        char[] payload = new char[payloadBytes];
+        Arrays.fill(payload, 'x');
+        List<Event> events = new ArrayList<>(nEvents);
+        for (int i=0; i<nEvents; i++) {
+            events.add(new Event("event-" + i, "key-" + (i % 1024), new String(payload)));
+        }
+
+        // warm up the JIT before measuring
+        run(events, false);
+        run(events, true);
+
+        System.out.printf("%-8s %10s %14s %16s %8s %10s%n",
+                "mode", "events", "events/sec", "bytes/event", "gc", "gc ms");
+        report("event", nEvents, run(events, false));
+        report("record", nEvents, run(events, true));
+    }
+
+    private static long[] run(List<Event> events, boolean flyweight) throws InterruptedException {
+        MessageQueue mq = new MessageQueue(PARTITIONS, PARTITIONS);
+        String topicId = mq.addTopic("bench", PARTITIONS);
+        CountDownLatch consumed = new CountDownLatch(events.size());
+        String subscriberId = mq.addSubscriber(flyweight
+                ? new CountingRecordSubscriber("record", consumed)
+                : new CountingSubscriber("event", consumed));
+        mq.subscribe(topicId, subscriberId);
+        mq.setMaxInFlight(topicId, subscriberId, 1000);
+
+        long[] gcBefore = gcStats();
+        Map<Long, Long> allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i=0; i<events.size(); i+=PUBLISH_BATCH) {
+            mq.publishAll(topicId, events.subList(i, Math.min(events.size(), i + PUBLISH_BATCH)));
+        }
+        consumed.await();
+        long elapsed = System.nanoTime() - start;
+
+        long allocated = 0;
+        for (Map.Entry<Long, Long> entry : allocatedBytes().entrySet()) {
+            allocated += entry.getValue() - allocatedBefore.getOrDefault(entry.getKey(), 0L);
+        }
+        long[] gcAfter = gcStats();
+        mq.shutdown();
+        return new long[]{elapsed, allocated, gcAfter[0] - gcBefore[0], gcAfter[1] - gcBefore[1]};
+    }
+
+    private static Map<Long, Long> allocatedBytes() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long[] ids = threads.getAllThreadIds();
+        long[] bytes = threads.getThreadAllocatedBytes(ids);
+        Map<Long, Long> allocated = new HashMap<>();
+        for (int i=0; i<ids.length; i++) {
+            if (bytes[i] >= 0)
+                allocated.put(ids[i], bytes[i]);
+        }
+        return allocated;
+    }
+
+    private static long[] gcStats() {
+        long count = 0, time = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(gc.getCollectionCount(), 0);
+            time += Math.max(gc.getCollectionTime(), 0);
+        }
+        return new long[]{count, time};
+    }
+
+    private static void report(String mode, int nEvents, long[] result) {
+        System.out.printf("%-8s %10d %14.0f %16d %8d %10d%n", mode, nEvents, nEvents * 1e9 / result[0],
+                result[1] / nEvents, result[2], result[3]);
+    }
+}
+
+class CountingSubscriber implements ISubscriber {
+    private final String id;
+    final CountDownLatch consumed;
+    long valueBytes;
+
+    CountingSubscriber(String id, CountDownLatch consumed) {
+        this.id = id;
+        this.consumed = consumed;
+    }
+
+    @Override
+    public String getId() {
+        return id;
+    }
+
+    @Override
+    public void consume(Event event) {
+        valueBytes += event.value.length();
+        consumed.countDown();
+    }
+}
+
+class CountingRecordSubscriber extends CountingSubscriber implements IRecordSubscriber {
+
+    CountingRecordSubscriber(String id, CountDownLatch consumed) {
+        super(id, consumed);
+    }
+
+    @Override
+    public void consume(RecordView record) {
+        valueBytes += record.valueLength();
+        consumed.countDown();
+    }
+}
@@ -0,0 +1,109 @@
+package kafkadesign;
+
+import java.util.Collection;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background pass over every partition that deletes segments past the topic's retention and, for
+ * compacted topics, rewrites the dirtiest closed segment per pass. A removed segment is retired, and
+ * its buffer returns to the buffer pool once no view reads it any more. A subscription's view keeps
+ * its segment until the next delivery moves it on, so an idle subscription can hold back one buffer.
+ */
+class LogCleaner {
+
+    private static final long CLEANER_INTERVAL_IN_MS = 1000;
+    private static final double MIN_CLEANABLE_RATIO = 0.5;
+
+    private final Collection<Topic> topics;
+    private final BufferPool bufferPool;
+    private final ScheduledExecutorService executor;
+
+    LogCleaner(Collection<Topic> topics, BufferPool bufferPool) {
+        this.topics = topics;
+        this.bufferPool = bufferPool;
+        this.executor = Executors.newSingleThreadScheduledExecutor();
+        executor.scheduleWithFixedDelay(this::clean, CLEANER_INTERVAL_IN_MS, CLEANER_INTERVAL_IN_MS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    void clean() {
+        try {
+            long now = System.currentTimeMillis();
+            for (Topic topic : topics) {
+                for (Partition partition : topic.partitions) {
+                    applyRetention(topic.config, partition, now);
+                    if (topic.config.compacted)
+                        compactDirtiestSegment(partition);
+                }
+            }
+        } catch (RuntimeException e) {
+            // a failed pass must not cancel the schedule
+            System.out.println(e);
+        }
+    }
+
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    private void applyRetention(TopicConfig config, Partition partition, long now) {
+        // only the cleaner removes segments, so the head of this snapshot stays the head of the chain
+        LogSegment[] segments = partition.segments();
+        long totalBytes = 0;
+        for (LogSegment segment : segments) {
+            totalBytes += segment.sizeInBytes();
+        }
+
+        for (LogSegment oldest : segments) {
+            // the active segment is never deleted
+            if (oldest == partition.activeSegment)
+                break;
+            boolean expired = config.retentionInMs >= 0 && now - oldest.maxTimestamp > config.retentionInMs;
+            boolean oversized = config.retentionBytes >= 0
+                    && totalBytes - oldest.sizeInBytes() >= config.retentionBytes;
+            if (!expired && !oversized)
+                break;
+            partition.removeSegment(oldest);
+            totalBytes -= oldest.sizeInBytes();
+            oldest.retire();
+        }
+    }
+
+    private void compactDirtiestSegment(Partition partition) {
+        LogSegment[] segments = partition.segments();
+        LogSegment active = partition.activeSegment;
+        LogSegment dirtiest = null;
+        for (LogSegment segment : segments) {
+            if (segment == active || segment.count == 0 || segment.superseded < segment.count * MIN_CLEANABLE_RATIO)
+                continue;
+            if (dirtiest == null || segment.superseded * dirtiest.count > dirtiest.superseded * segment.count)
+                dirtiest = segment;
+        }
+        if (dirtiest == null)
+            return;
+
+        LogSegment compacted = new LogSegment(dirtiest.baseOffset, dirtiest.baseTimestamp, bufferPool);
+        // only the cleaner retires segments, so the chain's reference keeps dirtiest's buffer in place
+        RecordView view = new RecordView();
+        for (int i=0; i<dirtiest.count; i++) {
+            view.wrap(dirtiest, i);
+            String key = view.key();
+            Integer latest = key == null ? null : partition.latestOffsetByKey.get(key);
+            if (latest == null || latest == view.offset())
+                compacted.copy(dirtiest, i);
+        }
+        view.release();
+        compacted.endOffset = dirtiest.endOffset;
+
+        if (compacted.count == 0) {
+            partition.removeSegment(dirtiest);
+            // never published, so no view can point into it
+            compacted.retire();
+        } else {
+            partition.replaceSegment(dirtiest, compacted);
+        }
+        dirtiest.retire();
+    }
+}
@@ -0,0 +1,373 @@
+package kafkadesign;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * A run of records of one partition packed into a single pooled buffer, covering offsets
+ * [baseOffset, endOffset). Offsets are dense until compaction rewrites the segment, after which
+ * offsets[] records which of them survived. Only the partition's appender writes to the active
+ * segment; readers rely on Partition.logEndOffset being published after the record bytes.
+ * Timestamps are tracked as the running maximum over the partition, which keeps them monotonic even
+ * when producers' clocks disagree; timeIndex samples it at the end of every block of records.
+ * The partition's chain holds one reference to the segment and every view reading it another; the
+ * buffer goes back to the pool when the segment has been retired and the last of them is released.
+ */
+class LogSegment {
+    private static final int TIME_INDEX_INTERVAL = 32;
+
+    int baseOffset;
+    int endOffset;
+    ByteBuffer buffer;
+    int count;
+    int[] positions;
+    int[] offsets;
+    long baseTimestamp;
+    long maxTimestamp;
+    long[] timeIndex;
+    int superseded;
+    volatile boolean retired;
+    private int writePosition;
+    private final CRC32 crc;
+    private final BufferPool bufferPool;
+    private final AtomicInteger references;
+
+    LogSegment(int baseOffset, long baseTimestamp, BufferPool bufferPool) {
+        this.baseOffset = baseOffset;
+        this.endOffset = baseOffset;
+        this.baseTimestamp = baseTimestamp;
+        this.maxTimestamp = baseTimestamp;
+        this.bufferPool = bufferPool;
+        this.buffer = bufferPool.acquire();
+        this.positions = new int[64];
+        this.timeIndex = new long[2];
+        this.crc = new CRC32();
+        this.references = new AtomicInteger(1);
+    }
+
+    /**
+     * Keeps the buffer from being reused until release is called. Fails once the buffer is back in
+     * the pool, in which case the reader must look the offset up in the current chain again.
+     */
+    boolean retain() {
+        int count;
+        do {
+            count = references.get();
+            if (count == 0)
+                return false;
+        } while (!references.compareAndSet(count, count + 1));
+        return true;
+    }
+
+    void release() {
+        if (references.decrementAndGet() == 0)
+            bufferPool.release(buffer);
+    }
+
+    /**
+     * Drops the chain's reference once the segment has been taken out of it.
+     */
+    void retire() {
+        retired = true;
+        release();
+    }
+
+    boolean contains(int offset) {
+        return offset >= baseOffset && offset < endOffset;
+    }
+
+    int offsetAt(int index) {
+        return offsets == null ? baseOffset + index : offsets[index];
+    }
+
+    /**
+     * Index of the first record whose offset is at least the given one, or count if there is none.
+     */
+    int indexOf(int offset) {
+        if (offset <= baseOffset)
+            return 0;
+        if (offsets == null)
+            return Math.min(offset - baseOffset, count);
+        int low = 0, high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (offsets[mid] < offset)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    int sizeInBytes() {
+        return writePosition;
+    }
+
+    /**
+     * Returns false, leaving the segment untouched, when the record does not fit.
+     */
+    boolean append(Event event, boolean checksum) {
+        byte[] id = encode(event.id);
+        byte[] key = encode(event.key);
+        byte[] value = encode(event.value);
+        if (length(id) > Short.MAX_VALUE || length(key) > Short.MAX_VALUE)
+            throw new RuntimeException("Event id and key must fit in " + Short.MAX_VALUE + " bytes");
+        int recordSize = RecordView.HEADER_SIZE + 2 + length(id) + 2 + length(key) + 4 + length(value);
+        if (writePosition + recordSize > buffer.capacity())
+            return false;
+
+        int position = writePosition;
+        buffer.putInt(position, recordSize - 4);
+        buffer.put(position + RecordView.ATTRIBUTES, checksum ? RecordView.CHECKSUM_FLAG : 0);
+        buffer.putLong(position + RecordView.CREATED_AT, event.createdAt == null ? 0 : event.createdAt);
+        int next = writeBytes(position + RecordView.HEADER_SIZE, id, 2);
+        next = writeBytes(next, key, 2);
+        writeBytes(next, value, 4);
+
+        int crcValue = 0;
+        if (checksum) {
+            crc.reset();
+            crc.update(buffer.array(), buffer.arrayOffset() + position + RecordView.CREATED_AT,
+                    recordSize - RecordView.CREATED_AT);
+            crcValue = (int) crc.getValue();
+        }
+        buffer.putInt(position + RecordView.CRC, crcValue);
+
+        if (count == positions.length)
+            positions = Arrays.copyOf(positions, positions.length * 2);
+        positions[count] = position;
+        indexTimestamp(count);
+        count++;
+        writePosition += recordSize;
+        endOffset = baseOffset + count;
+        return true;
+    }
+
+    /**
+     * Copies a record byte for byte from another segment, keeping its original offset.
+     */
+    boolean copy(LogSegment source, int index) {
+        int from = source.positions[index];
+        int recordSize = source.buffer.getInt(from) + 4;
+        if (writePosition + recordSize > buffer.capacity())
+            return false;
+
+        System.arraycopy(source.buffer.array(), source.buffer.arrayOffset() + from,
+                buffer.array(), buffer.arrayOffset() + writePosition, recordSize);
+        if (offsets == null)
+            offsets = new int[positions.length];
+        if (count == positions.length) {
+            positions = Arrays.copyOf(positions, positions.length * 2);
+            offsets = Arrays.copyOf(offsets, positions.length);
+        }
+        positions[count] = writePosition;
+        offsets[count] = source.offsetAt(index);
+        indexTimestamp(count);
+        count++;
+        writePosition += recordSize;
+        return true;
+    }
+
+    /**
+     * Index of the first record at which the running maximum timestamp reaches the given one, or
+     * count if it never does. Binary search over the sampled blocks, then a scan of one block.
+     */
+    int indexForTime(long timestamp) {
+        int blocks = (count + TIME_INDEX_INTERVAL - 1) / TIME_INDEX_INTERVAL;
+        int low = 0, high = blocks;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (timeIndex[mid] < timestamp)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        if (low == blocks)
+            return count;
+
+        long running = low == 0 ? baseTimestamp : timeIndex[low - 1];
+        int end = Math.min(count, (low + 1) * TIME_INDEX_INTERVAL);
+        for (int i=low*TIME_INDEX_INTERVAL; i<end; i++) {
+            running = Math.max(running, buffer.getLong(positions[i] + RecordView.CREATED_AT));
+            if (running >= timestamp)
+                return i;
+        }
+        return count;
+    }
+
+    private void indexTimestamp(int index) {
+        maxTimestamp = Math.max(maxTimestamp, buffer.getLong(positions[index] + RecordView.CREATED_AT));
+        int block = index / TIME_INDEX_INTERVAL;
+        if (block == timeIndex.length)
+            timeIndex = Arrays.copyOf(timeIndex, timeIndex.length * 2);
+        timeIndex[block] = maxTimestamp;
+    }
+
+    private int writeBytes(int position, byte[] bytes, int lengthPrefix) {
+        int length = bytes == null ? -1 : bytes.length;
+        if (lengthPrefix == 2)
+            buffer.putShort(position, (short) length);
+        else
+            buffer.putInt(position, length);
+        position += lengthPrefix;
+        if (bytes != null) {
+            System.arraycopy(bytes, 0, buffer.array(), buffer.arrayOffset() + position, bytes.length);
+            position += bytes.length;
+        }
+        return position;
+    }
+
+    private static byte[] encode(String value) {
+        return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int length(byte[] bytes) {
+        return bytes == null ? 0 : bytes.length;
+    }
+}
+
+/**
+ * Flyweight over one encoded record. It is re-pointed at each record rather than allocated per
+ * delivery, so it must not be retained after consume returns; use {@link #toEvent()} for that.
+ * The view holds a reference to the segment it points into until it moves to another or is released.
+ * Layout: length(4) attributes(1) crc(4) createdAt(8) idLength(2) id keyLength(2) key valueLength(4) value.
+ */
+class RecordView {
+    static final int ATTRIBUTES = 4;
+    static final int CRC = 5;
+    static final int CREATED_AT = 9;
+    static final int HEADER_SIZE = 17;
+    static final byte CHECKSUM_FLAG = 1;
+
+    private ByteBuffer buffer;
+    private int position;
+    private int offset;
+    private final CRC32 crc = new CRC32();
+    LogSegment segment;
+    int index;
+
+    /**
+     * Returns false, leaving the view as it was, if the segment's buffer is already back in the pool.
+     */
+    boolean wrap(LogSegment segment, int index) {
+        if (segment != this.segment) {
+            if (!segment.retain())
+                return false;
+            release();
+            this.segment = segment;
+            this.buffer = segment.buffer;
+        }
+        this.index = index;
+        this.position = segment.positions[index];
+        this.offset = segment.offsetAt(index);
+        return true;
+    }
+
+    void release() {
+        if (segment != null)
+            segment.release();
+        segment = null;
+        buffer = null;
+    }
+
+    int offset() {
+        return offset;
+    }
+
+    long createdAt() {
+        return buffer.getLong(position + CREATED_AT);
+    }
+
+    String id() {
+        return decode(idPosition(), buffer.getShort(idPosition() - 2));
+    }
+
+    String key() {
+        return decode(keyPosition(), buffer.getShort(keyPosition() - 2));
+    }
+
+    String value() {
+        return decode(valueOffset(), valueLength());
+    }
+
+    /**
+     * Raw access for consumers that can work on the bytes in place.
+     */
+    ByteBuffer buffer() {
+        return buffer;
+    }
+
+    int valueOffset() {
+        return keyPosition() + Math.max(buffer.getShort(keyPosition() - 2), 0) + 4;
+    }
+
+    int valueLength() {
+        return buffer.getInt(valueOffset() - 4);
+    }
+
+    boolean isValid() {
+        if ((buffer.get(position + ATTRIBUTES) & CHECKSUM_FLAG) == 0)
+            return true;
+        crc.reset();
+        crc.update(buffer.array(), buffer.arrayOffset() + position + CREATED_AT,
+                buffer.getInt(position) + 4 - CREATED_AT);
+        return (int) crc.getValue() == buffer.getInt(position + CRC);
+    }
+
+    Event toEvent() {
+        return new Event(id(), key(), value(), createdAt());
+    }
+
+    private int idPosition() {
+        return position + HEADER_SIZE + 2;
+    }
+
+    private int keyPosition() {
+        return idPosition() + Math.max(buffer.getShort(idPosition() - 2), 0) + 2;
+    }
+
+    private String decode(int start, int length) {
+        if (length < 0)
+            return null;
+        return new String(buffer.array(), buffer.arrayOffset() + start, length, StandardCharsets.UTF_8);
+    }
+}
+
+/**
+ * Recycles the fixed-size heap buffers segments are written into. Heap buffers keep the record
+ * bytes array-backed so strings can be decoded straight out of the segment.
+ */
+class BufferPool {
+    private final int bufferSize;
+    private final int maxPooled;
+    private final ConcurrentLinkedQueue<ByteBuffer> free;
+    private final AtomicInteger pooled;
+
+    BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+        this.free = new ConcurrentLinkedQueue<>();
+        this.pooled = new AtomicInteger(0);
+    }
+
+    ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null)
+            return ByteBuffer.allocate(bufferSize);
+        pooled.decrementAndGet();
+        return buffer;
+    }
+
+    void release(ByteBuffer buffer) {
+        if (pooled.incrementAndGet() > maxPooled) {
+            pooled.decrementAndGet();
+            return;
+        }
+        buffer.clear();
+        free.offer(buffer);
+    }
+}
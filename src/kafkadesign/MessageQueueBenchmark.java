@@ -0,0 +1,313 @@
+package kafkadesign;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/***
+ * Load generator for a message queue over a matrix of topics, subscribers and payload sizes. Every
+ * subscriber subscribes to every topic. Each run reports:
+ * - publish throughput, from the first publish until every publish future completes;
+ * - publish-to-consume latency percentiles over every delivery;
+ * - replay throughput of one subscriber re-reading all topics from offset 0;
+ * - heap growth per retained event, measured after GC and including segment buffers.
+ * The queue is reached through IQueueUnderTest, so the same harness runs this design, once per
+ * delivery engine, and practice.messagequeue.MessageQueueBenchmark runs the practice design. Results
+ * are written as CSV, or as JSON when the file name ends in .json.
+ * Run with: java kafkadesign.MessageQueueBenchmark [eventsPerRun] [results.csv|results.json]
+ */
+public class MessageQueueBenchmark {
+
+    private static final String[] COLUMNS = {"design", "engine", "topics", "subscribers", "payloadBytes", "events",
+            "publishPerSec", "p50Us", "p99Us", "p999Us", "maxUs", "replayPerSec", "bytesPerEvent"};
+
+    private static final long TIMEOUT_IN_SECONDS = 120;
+    private static final int[] TOPICS = {1, 4};
+    private static final int[] SUBSCRIBERS = {1, 16};
+    private static final int[] PAYLOAD_BYTES = {100, 1000};
+
+    /**
+     * What the harness needs of a queue. Subscribers are handed each event's value.
+     */
+    public interface IQueueUnderTest {
+        String design();
+        String engine();
+        String addTopic(String name);
+        String addSubscriber(String name, Consumer<String> consumer);
+        void subscribe(String topicId, String subscriberId);
+        CompletableFuture<Void> publish(String topicId, String eventId, String key, String value);
+        void replay(String topicId, String subscriberId);
+        void shutdown();
+    }
+
+    public static void main(String[] args) throws InterruptedException, IOException {
+        run(args, Arrays.asList(() -> new KafkaQueueUnderTest("hashed"), () -> new KafkaQueueUnderTest("mailbox")));
+    }
+
+    /**
+     * Runs the whole matrix for each kind of queue, each run on a fresh queue from its supplier.
+     */
+    public static void run(String[] args, List<Supplier<IQueueUnderTest>> queues)
+            throws InterruptedException, IOException {
+        int nEvents = args.length > 0 ? Integer.parseInt(args[0]) : 50_000;
+        String output = args.length > 1 ? args[1] : null;
+
+        // warm up the JIT before measuring
+        run(queues.get(0), 1, 1, 100, nEvents);
+
+        List<String[]> rows = new ArrayList<>();
+        System.out.println(String.join("\t", COLUMNS));
+        for (Supplier<IQueueUnderTest> queue : queues) {
+            for (int topics : TOPICS) {
+                for (int subscribers : SUBSCRIBERS) {
+                    for (int payloadBytes : PAYLOAD_BYTES) {
+                        String[] row = run(queue, topics, subscribers, payloadBytes, nEvents);
+                        System.out.println(String.join("\t", row));
+                        rows.add(row);
+                    }
+                }
+            }
+        }
+        if (output != null)
+            write(output, rows);
+    }
+
+    private static String[] run(Supplier<IQueueUnderTest> queue, int nTopics, int nSubscribers, int payloadBytes,
+                                int nEvents) throws InterruptedException {
+        LatencySubscriber[] subscribers = new LatencySubscriber[nSubscribers];
+        for (int i=0; i<nSubscribers; i++) {
+            subscribers[i] = new LatencySubscriber(nEvents);
+        }
+        String padding = padding(payloadBytes);
+        long heapBefore = usedHeap();
+
+        IQueueUnderTest mq = queue.get();
+        String[] topicIds = new String[nTopics];
+        for (int i=0; i<nTopics; i++) {
+            topicIds[i] = mq.addTopic("bench-" + i);
+        }
+        CountDownLatch consumed = new CountDownLatch(nEvents * nSubscribers);
+        for (int i=0; i<nSubscribers; i++) {
+            subscribers[i].consumed = consumed;
+            subscribers[i].id = mq.addSubscriber("subscriber-" + i, subscribers[i]);
+            for (String topicId : topicIds) {
+                mq.subscribe(topicId, subscribers[i].id);
+            }
+        }
+
+        long start = System.nanoTime();
+        List<CompletableFuture<Void>> published = new ArrayList<>(nEvents);
+        for (int i=0; i<nEvents; i++) {
+            published.add(mq.publish(topicIds[i % nTopics], "event-" + i, "key-" + (i % 1024),
+                    System.nanoTime() + padding));
+        }
+        CompletableFuture.allOf(published.toArray(new CompletableFuture<?>[0])).join();
+        long publishNanos = System.nanoTime() - start;
+        published = null;
+        await(consumed, "delivery");
+
+        long[] latencies = merge(subscribers);
+        long bytesPerEvent = (usedHeap() - heapBefore) / nEvents;
+
+        LatencySubscriber replayer = subscribers[0];
+        replayer.recording = false;
+        replayer.consumed = new CountDownLatch(nEvents);
+        start = System.nanoTime();
+        for (String topicId : topicIds) {
+            mq.replay(topicId, replayer.id);
+        }
+        await(replayer.consumed, "replay");
+        long replayNanos = System.nanoTime() - start;
+        mq.shutdown();
+
+        return new String[]{mq.design(), mq.engine(), String.valueOf(nTopics), String.valueOf(nSubscribers),
+                String.valueOf(payloadBytes), String.valueOf(nEvents),
+                String.valueOf(Math.round(nEvents * 1e9 / publishNanos)),
+                micros(percentile(latencies, 0.50)), micros(percentile(latencies, 0.99)),
+                micros(percentile(latencies, 0.999)), micros(latencies[latencies.length - 1]),
+                String.valueOf(Math.round(nEvents * 1e9 / replayNanos)), String.valueOf(bytesPerEvent)};
+    }
+
+    private static void await(CountDownLatch latch, String phase) throws InterruptedException {
+        if (!latch.await(TIMEOUT_IN_SECONDS, TimeUnit.SECONDS))
+            throw new RuntimeException("Timed out during " + phase + " with " + latch.getCount() + " deliveries left");
+    }
+
+    private static String padding(int payloadBytes) {
+        // the publish time is written in front of the padding, so the value ends up about payloadBytes long
+        char[] padding = new char[Math.max(payloadBytes - 20, 1)];
+        Arrays.fill(padding, 'x');
+        padding[0] = ':';
+        return new String(padding);
+    }
+
+    private static long[] merge(LatencySubscriber[] subscribers) {
+        int total = 0;
+        for (LatencySubscriber subscriber : subscribers) {
+            total += Math.min(subscriber.recorded.get(), subscriber.latencies.length);
+        }
+        long[] merged = new long[total];
+        int next = 0;
+        for (LatencySubscriber subscriber : subscribers) {
+            int count = Math.min(subscriber.recorded.get(), subscriber.latencies.length);
+            System.arraycopy(subscriber.latencies, 0, merged, next, count);
+            next += count;
+        }
+        Arrays.sort(merged);
+        return merged;
+    }
+
+    private static long percentile(long[] sorted, double quantile) {
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(quantile * sorted.length) - 1)];
+    }
+
+    private static String micros(long nanos) {
+        return String.valueOf(nanos / 1000);
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        for (int i=0; i<3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static void write(String path, List<String[]> rows) throws IOException {
+        StringBuilder out = new StringBuilder();
+        if (path.endsWith(".json")) {
+            out.append("[\n");
+            for (int r=0; r<rows.size(); r++) {
+                out.append("  {");
+                for (int c=0; c<COLUMNS.length; c++) {
+                    String value = rows.get(r)[c];
+                    boolean text = c < 2;
+                    out.append(c > 0 ? ", " : "").append('"').append(COLUMNS[c]).append("\": ")
+                            .append(text ? "\"" + value + "\"" : value);
+                }
+                out.append(r < rows.size() - 1 ? "},\n" : "}\n");
+            }
+            out.append("]\n");
+        } else {
+            out.append(String.join(",", COLUMNS)).append('\n');
+            for (String[] row : rows) {
+                out.append(String.join(",", row)).append('\n');
+            }
+        }
+        Files.write(Paths.get(path), out.toString().getBytes(StandardCharsets.UTF_8));
+    }
+}
+
+/**
+ * Reads the publish time written at the start of each value. A subscriber reading several topics is
+ * called from several delivery threads at once, hence the atomic slot counter.
+ */
+class LatencySubscriber implements Consumer<String> {
+    String id;
+    final long[] latencies;
+    final AtomicInteger recorded;
+    volatile boolean recording;
+    volatile CountDownLatch consumed;
+
+    LatencySubscriber(int capacity) {
+        this.latencies = new long[capacity];
+        this.recorded = new AtomicInteger(0);
+        this.recording = true;
+    }
+
+    @Override
+    public void accept(String value) {
+        if (recording) {
+            long latency = System.nanoTime() - Long.parseLong(value.substring(0, value.indexOf(':')));
+            int slot = recorded.getAndIncrement();
+            if (slot < latencies.length)
+                latencies[slot] = latency;
+        }
+        consumed.countDown();
+    }
+}
+
+/**
+ * A fresh queue per run, with the given delivery engine, several partitions per topic and an
+ * in-flight window wide enough not to throttle the load.
+ */
+class KafkaQueueUnderTest implements MessageQueueBenchmark.IQueueUnderTest {
+
+    private static final int PARTITIONS = 4;
+    private static final int PRODUCER_THREADS = 4;
+    private static final int CONSUMER_THREADS = 4;
+    private static final int SEGMENT_BYTES = 64 * 1024;
+    private static final int MAX_IN_FLIGHT = 1000;
+
+    private final String engine;
+    private final MessageQueue mq;
+
+    KafkaQueueUnderTest(String engine) {
+        this.engine = engine;
+        IDeliveryEngine deliveryEngine = engine.equals("mailbox")
+                ? new MailboxDeliveryEngine() : new HashedDeliveryEngine(CONSUMER_THREADS);
+        this.mq = new MessageQueue(PRODUCER_THREADS, deliveryEngine, SEGMENT_BYTES, new InMemoryOffsetStore());
+    }
+
+    @Override
+    public String design() {
+        return "kafkadesign";
+    }
+
+    @Override
+    public String engine() {
+        return engine;
+    }
+
+    @Override
+    public String addTopic(String name) {
+        return mq.addTopic(name, PARTITIONS);
+    }
+
+    @Override
+    public String addSubscriber(String name, Consumer<String> consumer) {
+        return mq.addSubscriber(new ISubscriber() {
+            @Override
+            public String getId() {
+                return name;
+            }
+
+            @Override
+            public void consume(Event event) {
+                consumer.accept(event.value);
+            }
+        });
+    }
+
+    @Override
+    public void subscribe(String topicId, String subscriberId) {
+        mq.subscribe(topicId, subscriberId);
+        mq.setMaxInFlight(topicId, subscriberId, MAX_IN_FLIGHT);
+    }
+
+    @Override
+    public CompletableFuture<Void> publish(String topicId, String eventId, String key, String value) {
+        return mq.publish(topicId, new Event(eventId, key, value));
+    }
+
+    @Override
+    public void replay(String topicId, String subscriberId) {
+        mq.replay(topicId, subscriberId, 0);
+    }
+
+    @Override
+    public void shutdown() {
+        mq.shutdown();
+    }
+}
@@ -1,15 +1,31 @@
 package kafkadesign;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
 import java.util.UUID;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class MessageQueueDesign {
 
-    public static void main(String[] args) throws InterruptedException {
+    public static void main(String[] args) throws InterruptedException, IOException {
         MessageQueue mq = new MessageQueue();
 
         String topic1 = mq.addTopic("topic1");
@@ -30,116 +46,1158 @@ public class MessageQueueDesign {
         Thread.sleep(2000);
         System.out.println("Replaying events");
         mq.replay(topic1, subscriber, 0);
+
+        Thread.sleep(1000);
+        Instant checkpoint = Instant.now();
+        Thread.sleep(10);
+        mq.publish(topic1, new Event("event4", "event4"));
+        Thread.sleep(1000);
+        System.out.println("Replaying events since checkpoint");
+        mq.replayFrom(topic1, subscriber, checkpoint);
+
+        Thread.sleep(1000);
+        String orders = mq.addTopic("orders", 3);
+        String billing1 = mq.addSubscriber("billing-1");
+        String billing2 = mq.addSubscriber("billing-2");
+        mq.subscribe(orders, "billing", billing1);
+        mq.subscribe(orders, "billing", billing2);
+        for (int i=0; i<6; i++) {
+            mq.publish(orders, new Event("order-" + i, "customer-" + (i % 3), "order-" + i));
+        }
+
+        Thread.sleep(1000);
+        System.out.println("billing-2 left the group");
+        mq.unsubscribe(orders, "billing", billing2);
+        for (int i=6; i<9; i++) {
+            mq.publish(orders, new Event("order-" + i, "customer-" + (i % 3), "order-" + i));
+        }
+
+        Thread.sleep(1000);
+        String audit = mq.addSubscriber("audit");
+        mq.subscribe(orders, "audit", audit, DeliveryMode.PULL);
+        for (int i=9; i<14; i++) {
+            mq.publish(orders, new Event("order-" + i, "customer-" + (i % 3), "order-" + i));
+        }
+        List<Event> batch = mq.poll(audit, orders, 3, 1000);
+        while (!batch.isEmpty()) {
+            System.out.println("audit polled " + batch.size() + " events");
+            mq.commit(audit, orders);
+            batch = mq.poll(audit, orders, 3, 500);
+        }
+        System.out.println("audit lag per partition: " + mq.lag(orders, "audit"));
+
+        // small segments so the cleaner has closed segments to compact
+        MessageQueue compactedMq = new MessageQueue(1, 1, 256);
+        String prices = compactedMq.addTopic("prices", new TopicConfig().compacted(true));
+        for (int i=0; i<20; i++) {
+            compactedMq.publish(prices, new Event("price-" + i, "stock-" + (i % 3), String.valueOf(100 + i)));
+        }
+        String pricesReader = compactedMq.addSubscriber("prices-reader");
+        compactedMq.subscribe(prices, pricesReader);
+        Thread.sleep(2500);
+        System.out.println("Replaying compacted prices");
+        compactedMq.replay(prices, pricesReader, 0);
+
+        // a subscriber that keeps failing on one event: the events behind it are still delivered, and
+        // the poison event ends up on the dead-letter topic after three attempts
+        String payments = mq.addTopic("payments");
+        String paymentsDlq = mq.addTopic("payments-dlq");
+        String paymentsReader = mq.addSubscriber(new FailingSubscriber(UUID.randomUUID().toString(), "payments-reader"));
+        String dlqReader = mq.addSubscriber("payments-dlq-reader");
+        mq.subscribe(payments, paymentsReader);
+        mq.subscribe(paymentsDlq, dlqReader);
+        mq.setRetryPolicy(payments, paymentsReader,
+                new RetryPolicy().maxAttempts(3).backoff(100, 2, 1000).deadLetterTopic(paymentsDlq));
+        mq.publish(payments, new Event("payment-1", "ok"));
+        mq.publish(payments, new Event("payment-2", FailingSubscriber.POISON));
+        mq.publish(payments, new Event("payment-3", "ok"));
+        Thread.sleep(1000);
+        System.out.println("payments lag per partition: " + mq.lag(payments, paymentsReader));
+
+        // committed offsets outlive the queue when it is given a durable offset store; the log itself is
+        // in memory, so the same events are published again after the restart
+        Path offsets = Files.createTempFile("offsets", ".log");
+        MessageQueue beforeRestart = new MessageQueue(1, 1, 1 << 16, new FileOffsetStore(offsets));
+        String ledger = beforeRestart.addTopic("ledger");
+        for (int i=0; i<10; i++) {
+            beforeRestart.publish(ledger, new Event("entry-" + i, "entry-" + i)).join();
+        }
+        String ledgerReader = beforeRestart.addSubscriber("ledger-reader");
+        beforeRestart.subscribe(ledger, "ledger", ledgerReader, DeliveryMode.PULL);
+        beforeRestart.replay(ledger, ledgerReader, 0);
+        System.out.println("Before restart read " + beforeRestart.poll(ledgerReader, ledger, 6, 1000).size() + " entries");
+        beforeRestart.commit(ledgerReader, ledger).join();
+        beforeRestart.shutdown();
+
+        MessageQueue afterRestart = new MessageQueue(1, 1, 1 << 16, new FileOffsetStore(offsets));
+        ledger = afterRestart.addTopic("ledger");
+        for (int i=0; i<10; i++) {
+            afterRestart.publish(ledger, new Event("entry-" + i, "entry-" + i)).join();
+        }
+        ledgerReader = afterRestart.addSubscriber("ledger-reader");
+        afterRestart.subscribe(ledger, "ledger", ledgerReader, DeliveryMode.PULL);
+        for (Event entry : afterRestart.poll(ledgerReader, ledger, 10, 1000)) {
+            System.out.println("After restart resumed at " + entry.id);
+        }
+        afterRestart.shutdown();
     }
 }
 
 class MessageQueue {
+    private static final int DEFAULT_THREAD_COUNT = 3;
+    private static final int SEGMENT_BYTES = 1 << 20;
+    private static final int MAX_POOLED_SEGMENTS = 64;
+    private static final long SHUTDOWN_TIMEOUT_IN_MS = 60_000;
+    private static final long COMMIT_RETRY_IN_MS = 100;
+
     private Map<String, Topic> topicMap;
     private Map<String, ISubscriber> subscriberMap;
     private HashBasedExecutor producerExecutor;
-    private HashBasedExecutor consumerExecutor;
+    private IDeliveryEngine deliveryEngine;
+    private ScheduledExecutorService retryTimer;
+    private BufferPool bufferPool;
+    private LogCleaner logCleaner;
+    private IOffsetStore offsetStore;
 
     MessageQueue() {
+        this(DEFAULT_THREAD_COUNT, DEFAULT_THREAD_COUNT);
+    }
+
+    MessageQueue(final int producerThreads, final int consumerThreads) {
+        this(producerThreads, consumerThreads, SEGMENT_BYTES);
+    }
+
+    MessageQueue(final int producerThreads, final int consumerThreads, final int segmentBytes) {
+        this(producerThreads, consumerThreads, segmentBytes, new InMemoryOffsetStore());
+    }
+
+    MessageQueue(final int producerThreads, final int consumerThreads, final int segmentBytes,
+                 final IOffsetStore offsetStore) {
+        this(producerThreads, new HashedDeliveryEngine(consumerThreads), segmentBytes, offsetStore);
+    }
+
+    MessageQueue(final int producerThreads, final IDeliveryEngine deliveryEngine, final int segmentBytes,
+                 final IOffsetStore offsetStore) {
         topicMap = new ConcurrentHashMap<>();
         subscriberMap = new ConcurrentHashMap<>();
-        producerExecutor = new HashBasedExecutor(3);
-        consumerExecutor = new HashBasedExecutor(3);
+        producerExecutor = new HashBasedExecutor(producerThreads);
+        this.deliveryEngine = deliveryEngine;
+        retryTimer = Executors.newSingleThreadScheduledExecutor();
+        bufferPool = new BufferPool(segmentBytes, MAX_POOLED_SEGMENTS);
+        logCleaner = new LogCleaner(topicMap.values(), bufferPool);
+        this.offsetStore = offsetStore;
     }
 
     public String addTopic(final String topicName) {
-        Topic topic = new Topic(UUID.randomUUID().toString(), topicName);
+        return addTopic(topicName, 1);
+    }
+
+    public String addTopic(final String topicName, final int nPartitions) {
+        return addTopic(topicName, new TopicConfig().partitions(nPartitions));
+    }
+
+    public String addTopic(final String topicName, final TopicConfig config) {
+        if (config.partitions <= 0)
+            throw new RuntimeException("Invalid partition count");
+        Topic topic = new Topic(UUID.randomUUID().toString(), topicName, config, bufferPool);
         topicMap.put(topic.id, topic);
         return topic.id;
     }
 
     public String addSubscriber(final String name) {
-        ISubscriber subscriber = new TestSubscriber(UUID.randomUUID().toString(), name);
+        return addSubscriber(new TestSubscriber(UUID.randomUUID().toString(), name));
+    }
+
+    public String addSubscriber(final ISubscriber subscriber) {
         subscriberMap.put(subscriber.getId(), subscriber);
         return subscriber.getId();
     }
 
+    /**
+     * A plain subscription is a consumer group of one, so the subscriber receives every partition.
+     */
     public void subscribe(final String topicId, final String subscriberId) {
+        subscribe(topicId, subscriberId, subscriberId);
+    }
+
+    public void subscribe(final String topicId, final String groupId, final String subscriberId) {
+        subscribe(topicId, groupId, subscriberId, DeliveryMode.PUSH);
+    }
+
+    public void subscribe(final String topicId, final String groupId, final String subscriberId,
+                          final DeliveryMode mode) {
         if (!topicMap.containsKey(topicId) || !subscriberMap.containsKey(subscriberId))
             throw new RuntimeException("Invalid input");
-        Subscription subscription = new Subscription(subscriberMap.get(subscriberId));
-        topicMap.get(topicId).subscriptions.add(subscription);
+        Topic topic = topicMap.get(topicId);
+        ConsumerGroup group = topic.groups.computeIfAbsent(groupId,
+                id -> new ConsumerGroup(id, topic, mode, offsetStore));
+        if (group.mode != mode)
+            throw new RuntimeException("Group " + groupId + " already uses " + group.mode + " delivery");
+        topic.registry.join(group, subscriberMap.get(subscriberId));
+        scheduleAll(group);
+    }
+
+    public void unsubscribe(final String topicId, final String subscriberId) {
+        unsubscribe(topicId, subscriberId, subscriberId);
+    }
+
+    public void unsubscribe(final String topicId, final String groupId, final String subscriberId) {
+        if (!topicMap.containsKey(topicId) || !topicMap.get(topicId).groups.containsKey(groupId))
+            throw new RuntimeException("Invalid input");
+        Topic topic = topicMap.get(topicId);
+        ConsumerGroup group = topic.groups.get(groupId);
+        topic.registry.leave(group, subscriberId).forEach(this::schedule);
+        scheduleAll(group);
     }
 
     public CompletableFuture<Void> publish(final String topicId, final Event event) {
         if (!topicMap.containsKey(topicId))
             throw new RuntimeException("Invalid topicId");
 
-        return producerExecutor.runAsync(topicId, () -> {
-            topicMap.get(topicId).events.add(event);
-        }).thenRun(() -> {
-            topicMap.get(topicId).subscriptions.forEach(subscription -> {
-                consumerExecutor.runAsync(topicId+subscription.subscriber.getId(),
-                    () -> {
-                        subscription.offset.getAndAdd(1);
-                        subscription.subscriber.consume(event);
-                    });
-            });
+        Topic topic = topicMap.get(topicId);
+        Partition partition = topic.partitionFor(event.key);
+
+        return producerExecutor.runAsync(topicId + "-" + partition.index, () -> {
+            topic.append(partition, Collections.singletonList(event));
+            fanOut(topic, partition);
         });
     }
 
+    /**
+     * Appends the events with a single producer task per partition touched, so a batch pays for one
+     * append and one fan-out instead of one per event. Per-key ordering follows the list order.
+     */
+    public CompletableFuture<Void> publishAll(final String topicId, final List<Event> events) {
+        if (!topicMap.containsKey(topicId))
+            throw new RuntimeException("Invalid topicId");
+
+        Topic topic = topicMap.get(topicId);
+        Map<Partition, List<Event>> eventsByPartition = new HashMap<>();
+        for (Event event : events) {
+            eventsByPartition.computeIfAbsent(topic.partitionFor(event.key), p -> new ArrayList<>()).add(event);
+        }
+
+        List<CompletableFuture<Void>> appends = new ArrayList<>();
+        eventsByPartition.forEach((partition, partitionEvents) ->
+                appends.add(producerExecutor.runAsync(topicId + "-" + partition.index, () -> {
+                    topic.append(partition, partitionEvents);
+                    fanOut(topic, partition);
+                })));
+        return CompletableFuture.allOf(appends.toArray(new CompletableFuture<?>[0]));
+    }
+
+    /**
+     * Returns up to maxEvents events from the partitions assigned to the subscriber, continuing from
+     * the position reached by its previous poll. Waits up to timeoutInMs when nothing is available.
+     * Positions only become durable for the group once {@link #commit(String, String)} is called.
+     */
+    public List<Event> poll(final String subscriberId, final String topicId, final int maxEvents,
+                            final long timeoutInMs) throws InterruptedException {
+        if (!topicMap.containsKey(topicId) || !subscriberMap.containsKey(subscriberId) || maxEvents <= 0)
+            throw new RuntimeException("Invalid input");
+
+        Topic topic = topicMap.get(topicId);
+        List<Subscription> assigned = assignedTo(topic, subscriberId, DeliveryMode.PULL);
+        List<Event> batch = new ArrayList<>();
+        long deadline = System.currentTimeMillis() + timeoutInMs;
+
+        while (batch.isEmpty()) {
+            // read before fetching, so an append made after the fetch looked is not slept through
+            long appends = topic.appends();
+            for (Subscription subscription : assigned) {
+                if (batch.size() >= maxEvents)
+                    break;
+                subscription.fetch(batch, maxEvents - batch.size());
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            if (!batch.isEmpty() || remaining <= 0)
+                break;
+            topic.awaitAppend(appends, remaining);
+        }
+
+        // at-most-once: the positions are durable before the caller sees a single event
+        List<CompletableFuture<Void>> commits = new ArrayList<>();
+        for (Subscription subscription : assigned) {
+            if (subscription.guarantee == DeliveryGuarantee.AT_MOST_ONCE)
+                commits.add(commit(subscription));
+        }
+        CompletableFuture.allOf(commits.toArray(new CompletableFuture<?>[0])).join();
+        return batch;
+    }
+
+    /**
+     * Commits the positions reached by poll. The future completes once the offsets are durable.
+     */
+    public CompletableFuture<Void> commit(final String subscriberId, final String topicId) {
+        if (!topicMap.containsKey(topicId) || !subscriberMap.containsKey(subscriberId))
+            throw new RuntimeException("Invalid input");
+        List<CompletableFuture<Void>> commits = new ArrayList<>();
+        assignedTo(topicMap.get(topicId), subscriberId, DeliveryMode.PULL)
+                .forEach(subscription -> commits.add(commit(subscription)));
+        return CompletableFuture.allOf(commits.toArray(new CompletableFuture<?>[0]));
+    }
+
     public void replay(final String topicId, final String subscriberId, final int offset) {
         if (!topicMap.containsKey(topicId) || !subscriberMap.containsKey(subscriberId))
             throw new RuntimeException("Invalid input");
 
-        Subscription subscription = topicMap.get(topicId).subscriptions.stream()
-                .filter(sub -> Objects.equals(sub.subscriber.getId(), subscriberMap.get(subscriberId).getId()))
-                .findFirst().orElseGet(null);
+        for (ConsumerGroup group : topicMap.get(topicId).registry.groupsOf(subscriberId)) {
+            for (Subscription subscription : group.assignedTo(subscriberId)) {
+                rewind(subscription, offset);
+            }
+        }
+    }
+
+    /**
+     * Replays every event created at or after the given time. The start offset of each partition is
+     * found through its time index, so no event before it is read.
+     */
+    public void replayFrom(final String topicId, final String subscriberId, final Instant from) {
+        if (!topicMap.containsKey(topicId) || !subscriberMap.containsKey(subscriberId))
+            throw new RuntimeException("Invalid input");
+
+        for (ConsumerGroup group : topicMap.get(topicId).registry.groupsOf(subscriberId)) {
+            for (Subscription subscription : group.assignedTo(subscriberId)) {
+                rewind(subscription, subscription.partition.offsetForTime(from.toEpochMilli()));
+            }
+        }
+    }
+
+    public void setDeliveryGuarantee(final String topicId, final String groupId, final DeliveryGuarantee guarantee) {
+        if (!topicMap.containsKey(topicId) || !topicMap.get(topicId).groups.containsKey(groupId))
+            throw new RuntimeException("Invalid input");
+        for (Subscription subscription : topicMap.get(topicId).groups.get(groupId).subscriptions) {
+            subscription.guarantee = guarantee;
+        }
+    }
+
+    /**
+     * Failed consume calls of a push group are retried with backoff and then, if the policy names
+     * one, published to a dead-letter topic.
+     */
+    public void setRetryPolicy(final String topicId, final String groupId, final RetryPolicy retryPolicy) {
+        if (!topicMap.containsKey(topicId) || !topicMap.get(topicId).groups.containsKey(groupId)
+                || retryPolicy.maxAttempts <= 0)
+            throw new RuntimeException("Invalid input");
+        String deadLetterTopicId = retryPolicy.deadLetterTopicId;
+        if (deadLetterTopicId != null && (!topicMap.containsKey(deadLetterTopicId) || deadLetterTopicId.equals(topicId)))
+            throw new RuntimeException("Invalid dead-letter topic");
+        topicMap.get(topicId).groups.get(groupId).retryPolicy = retryPolicy;
+    }
+
+    public void setMaxInFlight(final String topicId, final String groupId, final int maxInFlight) {
+        if (!topicMap.containsKey(topicId) || !topicMap.get(topicId).groups.containsKey(groupId) || maxInFlight <= 0)
+            throw new RuntimeException("Invalid input");
+        ConsumerGroup group = topicMap.get(topicId).groups.get(groupId);
+        group.setMaxInFlight(maxInFlight);
+        scheduleAll(group);
+    }
+
+    /**
+     * Log end offset minus committed offset for each partition the group reads.
+     */
+    public Map<Integer, Integer> lag(final String topicId, final String groupId) {
+        if (!topicMap.containsKey(topicId) || !topicMap.get(topicId).groups.containsKey(groupId))
+            throw new RuntimeException("Invalid input");
+        Map<Integer, Integer> lag = new TreeMap<>();
+        for (Subscription subscription : topicMap.get(topicId).groups.get(groupId).subscriptions) {
+            lag.put(subscription.partition.index, subscription.lag());
+        }
+        return lag;
+    }
+
+    /**
+     * Appends already accepted are finished and delivered; pending retries are dropped. The offset
+     * store is closed last, once no drain is left to commit to it.
+     */
+    public void shutdown() {
+        retryTimer.shutdownNow();
+        logCleaner.shutdown();
+        try {
+            producerExecutor.shutdown();
+            producerExecutor.awaitTermination(SHUTDOWN_TIMEOUT_IN_MS);
+            deliveryEngine.shutdown();
+            deliveryEngine.awaitTermination(SHUTDOWN_TIMEOUT_IN_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        offsetStore.close();
+    }
+
+    private CompletableFuture<Void> commit(final Subscription subscription) {
+        return offsetStore.commit(subscription.storeKey, subscription.commit());
+    }
+
+    /**
+     * Moves the cursor back so the events are delivered again. Push delivery then streams them a
+     * window at a time straight from the log, like any other backlog.
+     */
+    private void rewind(final Subscription subscription, final int offset) {
+        if (subscription.offset.get() < offset)
+            return;
+        if (subscription.group.mode == DeliveryMode.PULL) {
+            subscription.seek(offset);
+            return;
+        }
+        // seek on the delivery thread so a drain in progress cannot acknowledge into the new position
+        deliveryEngine.execute(subscription, () -> {
+            subscription.seek(offset);
+            schedule(subscription);
+        });
+    }
+
+    private List<Subscription> assignedTo(final Topic topic, final String subscriberId, final DeliveryMode mode) {
+        List<Subscription> assigned = new ArrayList<>();
+        for (ConsumerGroup group : topic.registry.groupsOf(subscriberId)) {
+            if (group.mode == mode)
+                assigned.addAll(group.assignedTo(subscriberId));
+        }
+        return assigned;
+    }
+
+    private void scheduleAll(final ConsumerGroup group) {
+        for (Subscription subscription : group.subscriptions) {
+            schedule(subscription);
+        }
+    }
+
+    /**
+     * Wakes every push subscription of the partition after an append. The wakes are handed to the
+     * delivery engine as one batch, which may run many of the drains in a single task.
+     */
+    private void fanOut(final Topic topic, final Partition partition) {
+        List<Subscription> due = new ArrayList<>();
+        topic.registry.fanOut(partition.index).forEach(subscription -> {
+            if (subscription.scheduled.compareAndSet(false, true))
+                due.add(subscription);
+        });
+        if (!due.isEmpty())
+            deliveryEngine.executeAll(due, this::drain);
+    }
+
+    /**
+     * Push delivery is a pull loop run on the subscription's consumer thread. At most one drain is
+     * queued per subscription, however many events arrive while it waits.
+     */
+    private void schedule(final Subscription subscription) {
+        if (subscription.group.mode != DeliveryMode.PUSH || !subscription.scheduled.compareAndSet(false, true))
+            return;
+        deliveryEngine.execute(subscription, () -> drain(subscription));
+    }
+
+    /**
+     * Delivers at most one in-flight window, acknowledging each event as consume returns, then yields
+     * the thread so a slow subscriber only delays itself and not the subscriptions sharing it.
+     */
+    private void drain(final Subscription subscription) {
+        if (subscription.subscriber == null) {
+            subscription.scheduled.set(false);
+            return;
+        }
+
+        int from = subscription.position;
+        int end = from + subscription.reserve(from, Integer.MAX_VALUE);
+        if (end > from && subscription.guarantee == DeliveryGuarantee.AT_MOST_ONCE) {
+            // one durable write per window, before any of it is handed out. The thread is not held
+            // while it is written, and the subscription stays scheduled until the window is delivered.
+            subscription.acknowledge(end);
+            offsetStore.commit(subscription.storeKey, end).whenComplete((ignored, e) -> {
+                if (e == null)
+                    deliveryEngine.execute(subscription, () -> deliver(subscription, from, end));
+                else
+                    retryCommit(subscription, from, end, e);
+            });
+            return;
+        }
+        deliver(subscription, from, end);
+    }
+
+    /**
+     * Nothing of the window was handed out, so it is put back and read again once the pause is over.
+     * The subscription stays scheduled meanwhile, so appends do not retry a failing store in a loop.
+     */
+    private void retryCommit(final Subscription subscription, final int from, final int end,
+                             final Throwable failure) {
+        System.out.println("Offset commit of " + subscription.storeKey + " failed, delivering from " + from
+                + " again: " + failure);
+        subscription.unreserve(from, end);
+        try {
+            retryTimer.schedule(() -> deliveryEngine.execute(subscription, () -> drain(subscription)),
+                    COMMIT_RETRY_IN_MS, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // shutting down; the window is left for the next run to read from the last committed offset
+            subscription.scheduled.set(false);
+        }
+    }
 
-        if (subscription == null || subscription.offset.get() < offset)
+    private void deliver(final Subscription subscription, final int from, final int end) {
+        subscription.scheduled.set(false);
+        ISubscriber subscriber = subscription.subscriber;
+        if (subscriber == null)
             return;
-        subscription.offset.set(offset);
-        topicMap.get(topicId).events.subList(offset, topicMap.get(topicId).events.size()).forEach(
-                event -> {
-                    consumerExecutor.runAsync(subscription.subscriber.getId() + topicId, () -> {
-                        subscription.offset.getAndAdd(1);
-                        subscription.subscriber.consume(event);
-                    });
-                }
-        );
 
+        // Record subscribers are handed the subscription's flyweight; others get an Event decoded from it.
+        RecordView view = subscription.view;
+        boolean atMostOnce = subscription.guarantee == DeliveryGuarantee.AT_MOST_ONCE;
+        for (int offset=from; offset<end && subscription.partition.view(offset, view) && view.offset()<end;
+             offset=view.offset()+1) {
+            try {
+                if (subscriber instanceof IRecordSubscriber)
+                    ((IRecordSubscriber) subscriber).consume(view);
+                else
+                    subscriber.consume(view.toEvent());
+            } catch (RuntimeException e) {
+                // the event is set aside for a retry so the events behind it keep flowing
+                subscription.retrying(view.offset());
+                retry(subscription, view.toEvent(), view.offset(), 1, e);
+            }
+            if (!atMostOnce)
+                subscription.acknowledge(view.offset() + 1);
+        }
+
+        if (end > from && !atMostOnce) {
+            subscription.acknowledge(end);
+            offsetStore.commit(subscription.storeKey, subscription.committable());
+        }
+        if (subscription.hasMore())
+            schedule(subscription);
     }
+
+    /**
+     * Schedules the next attempt on the shared retry timer, which only hands it back to the
+     * subscription's delivery thread, or dead-letters the event once the attempts run out.
+     */
+    private void retry(final Subscription subscription, final Event event, final int offset, final int failedAttempts,
+                       final RuntimeException failure) {
+        RetryPolicy policy = subscription.group.retryPolicy;
+        if (failedAttempts < policy.maxAttempts) {
+            retryTimer.schedule(() -> deliveryEngine.execute(subscription,
+                    () -> redeliver(subscription, event, offset, failedAttempts + 1)),
+                    policy.backoffInMs(failedAttempts), TimeUnit.MILLISECONDS);
+            return;
+        }
+
+        String deadLetterTopicId = policy.deadLetterTopicId;
+        System.out.println("Event " + event.id + " failed " + failedAttempts + " times, "
+                + (deadLetterTopicId == null ? "dropping it" : "moving it to the dead-letter topic") + ": " + failure);
+        CompletableFuture<Void> deadLettered = deadLetterTopicId == null || !topicMap.containsKey(deadLetterTopicId)
+                ? CompletableFuture.completedFuture(null) : publish(deadLetterTopicId, event);
+        // the offset stays uncommitted until the dead-letter topic holds the event
+        deadLettered.whenComplete((ignored, e) -> retried(subscription, offset));
+    }
+
+    private void redeliver(final Subscription subscription, final Event event, final int offset, final int attempt) {
+        ISubscriber subscriber = subscription.subscriber;
+        if (subscriber == null) {
+            // nobody owns the partition any more; the next owner reads the event from the log instead
+            subscription.seek(Math.min(offset, subscription.offset.get()));
+            retried(subscription, offset);
+            return;
+        }
+        try {
+            subscriber.consume(event);
+        } catch (RuntimeException e) {
+            retry(subscription, event, offset, attempt, e);
+            return;
+        }
+        retried(subscription, offset);
+    }
+
+    private void retried(final Subscription subscription, final int offset) {
+        subscription.retried(offset);
+        if (subscription.guarantee == DeliveryGuarantee.AT_LEAST_ONCE)
+            offsetStore.commit(subscription.storeKey, subscription.committable());
+    }
+}
+
+enum DeliveryMode {
+    PUSH,
+    PULL
+}
+
+/**
+ * AT_LEAST_ONCE commits after the events are consumed, AT_MOST_ONCE before they are handed out.
+ */
+enum DeliveryGuarantee {
+    AT_LEAST_ONCE,
+    AT_MOST_ONCE
 }
 
 class Event {
     String id;
+    String key;
     Long createdAt;
     String value;
 
     Event(String id, String value) {
+        this(id, id, value);
+    }
+
+    Event(String id, String key, String value) {
+        this(id, key, value, System.currentTimeMillis());
+    }
+
+    Event(String id, String key, String value, long createdAt) {
         this.id = id;
-        this.createdAt = System.currentTimeMillis();
+        this.key = key;
+        this.createdAt = createdAt;
         this.value = value;
     }
 }
 
+class TopicConfig {
+    int partitions = 1;
+    boolean checksum = true;
+    long retentionInMs = -1;
+    long retentionBytes = -1;
+    boolean compacted;
+
+    TopicConfig partitions(int partitions) {
+        this.partitions = partitions;
+        return this;
+    }
+
+    TopicConfig checksum(boolean checksum) {
+        this.checksum = checksum;
+        return this;
+    }
+
+    /**
+     * Closed segments whose newest event is older than this are deleted; -1 keeps them forever.
+     */
+    TopicConfig retentionInMs(long retentionInMs) {
+        this.retentionInMs = retentionInMs;
+        return this;
+    }
+
+    /**
+     * Oldest closed segments are deleted while the partition stays above this size; -1 disables it.
+     */
+    TopicConfig retentionBytes(long retentionBytes) {
+        this.retentionBytes = retentionBytes;
+        return this;
+    }
+
+    /**
+     * Keeps only the latest event per key once the background cleaner has compacted a segment.
+     */
+    TopicConfig compacted(boolean compacted) {
+        this.compacted = compacted;
+        return this;
+    }
+}
+
+/**
+ * Attempts counts the first delivery, so maxAttempts = 1 never retries. The wait before attempt n + 1
+ * is initialBackoffInMs * multiplier^(n - 1), capped at maxBackoffInMs. Without a dead-letter topic an
+ * event that fails every attempt is dropped.
+ */
+class RetryPolicy {
+    int maxAttempts = 3;
+    long initialBackoffInMs = 100;
+    double multiplier = 2;
+    long maxBackoffInMs = 10_000;
+    String deadLetterTopicId;
+
+    RetryPolicy maxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+        return this;
+    }
+
+    RetryPolicy backoff(long initialBackoffInMs, double multiplier, long maxBackoffInMs) {
+        this.initialBackoffInMs = initialBackoffInMs;
+        this.multiplier = multiplier;
+        this.maxBackoffInMs = maxBackoffInMs;
+        return this;
+    }
+
+    RetryPolicy deadLetterTopic(String deadLetterTopicId) {
+        this.deadLetterTopicId = deadLetterTopicId;
+        return this;
+    }
+
+    long backoffInMs(int failedAttempts) {
+        return (long) Math.min(maxBackoffInMs, initialBackoffInMs * Math.pow(multiplier, failedAttempts - 1));
+    }
+}
+
+/**
+ * Appends to different partitions do not contend: each takes its own partition's lock. Pollers wait on
+ * a count of appends instead, and an append only takes the lock they wait under while one is waiting.
+ */
 class Topic {
     String id;
 
     String name;
-    List<Event> events;
-    List<Subscription> subscriptions;
+    TopicConfig config;
+    Partition[] partitions;
+    Map<String, ConsumerGroup> groups;
+    SubscriptionRegistry registry;
+    private final AtomicLong appends;
+    private final AtomicInteger waiting;
+    private final Lock waitLock;
+    private final Condition entryAdded;
 
-    Topic(String id, String name) {
+    Topic(String id, String name, TopicConfig config, BufferPool bufferPool) {
         this.id = id;
         this.name = name;
-        events = new CopyOnWriteArrayList<>();
-        subscriptions = new CopyOnWriteArrayList<>();
+        this.config = config;
+        partitions = new Partition[config.partitions];
+        for (int i=0; i<config.partitions; i++) {
+            partitions[i] = new Partition(i, bufferPool, config);
+        }
+        groups = new ConcurrentHashMap<>();
+        registry = new SubscriptionRegistry(config.partitions);
+        appends = new AtomicLong();
+        waiting = new AtomicInteger();
+        waitLock = new ReentrantLock();
+        entryAdded = waitLock.newCondition();
+    }
+
+    Partition partitionFor(String key) {
+        return partitions[Math.abs(key.hashCode() % partitions.length)];
+    }
+
+    void append(Partition partition, List<Event> events) {
+        partition.lock.lock();
+        try {
+            events.forEach(partition::append);
+        } finally {
+            partition.lock.unlock();
+        }
+        // counted before waiting is read, and a poller registers before reading the count, so one of
+        // the two always sees the other
+        appends.incrementAndGet();
+        if (waiting.get() > 0) {
+            waitLock.lock();
+            try {
+                entryAdded.signalAll();
+            } finally {
+                waitLock.unlock();
+            }
+        }
+    }
+
+    long appends() {
+        return appends.get();
+    }
+
+    /**
+     * Waits up to timeoutInMs for an append to any partition after the given count of appends.
+     */
+    void awaitAppend(long seen, long timeoutInMs) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutInMs);
+        waitLock.lock();
+        waiting.incrementAndGet();
+        try {
+            long remaining = deadline - System.nanoTime();
+            while (appends.get() == seen && remaining > 0) {
+                remaining = entryAdded.awaitNanos(remaining);
+            }
+        } finally {
+            waiting.decrementAndGet();
+            waitLock.unlock();
+        }
+    }
+}
+
+/**
+ * Events are stored encoded in a chain of segments rather than as objects. Appends are serialised by
+ * the partition's lock; readers are lock-free and never look past logEndOffset, which is written last.
+ * Retention and compaction replace segments at the head of the chain, so offsets can have gaps and
+ * readers always move to the next record that still exists. The chain is an immutable array replaced
+ * on every change, so a reader that loads it once searches one consistent chain.
+ */
+class Partition {
+    int index;
+    TopicConfig config;
+    private volatile LogSegment[] segments;
+    Map<String, Integer> latestOffsetByKey;
+    volatile LogSegment activeSegment;
+    private volatile int logEndOffset;
+    private final BufferPool bufferPool;
+    final Lock lock;
+
+    Partition(int index, BufferPool bufferPool, TopicConfig config) {
+        this.index = index;
+        this.lock = new ReentrantLock();
+        this.config = config;
+        this.bufferPool = bufferPool;
+        activeSegment = new LogSegment(0, Long.MIN_VALUE, bufferPool);
+        segments = new LogSegment[] {activeSegment};
+        latestOffsetByKey = new ConcurrentHashMap<>();
+    }
+
+    int logStartOffset() {
+        return segments[0].baseOffset;
+    }
+
+    /**
+     * The current chain, oldest first. Not to be modified.
+     */
+    LogSegment[] segments() {
+        return segments;
+    }
+
+    /**
+     * Appender and cleaner both change the chain, so the copy and publish are serialised.
+     */
+    synchronized void replaceSegment(LogSegment segment, LogSegment replacement) {
+        LogSegment[] current = segments;
+        for (int i=0; i<current.length; i++) {
+            if (current[i] != segment)
+                continue;
+            LogSegment[] next;
+            if (replacement != null) {
+                next = current.clone();
+                next[i] = replacement;
+            } else {
+                next = new LogSegment[current.length - 1];
+                System.arraycopy(current, 0, next, 0, i);
+                System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+            }
+            segments = next;
+            return;
+        }
+    }
+
+    void removeSegment(LogSegment segment) {
+        replaceSegment(segment, null);
+    }
+
+    private synchronized void addSegment(LogSegment segment) {
+        LogSegment[] current = segments;
+        LogSegment[] next = Arrays.copyOf(current, current.length + 1);
+        next[current.length] = segment;
+        segments = next;
+    }
+
+    int logEndOffset() {
+        return logEndOffset;
+    }
+
+    void append(Event event) {
+        if (!activeSegment.append(event, config.checksum)) {
+            LogSegment rolled = new LogSegment(logEndOffset, activeSegment.maxTimestamp, bufferPool);
+            if (!rolled.append(event, config.checksum))
+                throw new RuntimeException("Event " + event.id + " does not fit in a segment");
+            addSegment(rolled);
+            activeSegment = rolled;
+        }
+        if (config.compacted && event.key != null) {
+            Integer previous = latestOffsetByKey.put(event.key, logEndOffset);
+            LogSegment segment = previous == null ? null : segmentFor(previous);
+            if (segment != null && segment.contains(previous))
+                segment.superseded++;
+        }
+        logEndOffset++;
+    }
+
+    /**
+     * Points the view at the first intact record whose offset is at least the given one, reusing its
+     * current segment when possible. Returns false if no such record has been written yet. A record
+     * failing its checksum is reported and skipped, as if compaction had removed it.
+     */
+    boolean view(int offset, RecordView view) {
+        int end = logEndOffset;
+        LogSegment segment = view.segment;
+        if (segment == null || segment.retired || !segment.contains(offset))
+            segment = segmentFor(offset);
+        while (segment != null && offset < end) {
+            int index = segment.indexOf(offset);
+            if (index == segment.count) {
+                segment = segmentFor(segment.endOffset);
+                continue;
+            }
+            if (segment.offsetAt(index) >= end)
+                return false;
+            if (!view.wrap(segment, index)) {
+                // reclaimed since it was looked up, so it is no longer in the chain
+                segment = segmentFor(offset);
+                continue;
+            }
+            if (view.isValid())
+                return true;
+            System.out.println("Skipping corrupt record at offset " + view.offset() + " of partition "
+                    + this.index);
+            offset = view.offset() + 1;
+        }
+        return false;
+    }
+
+    /**
+     * The first offset from which every event was created at or after the given time, as far as the
+     * running maximum timestamp can tell; logEndOffset if there is none yet.
+     */
+    int offsetForTime(long timestamp) {
+        while (true) {
+            int end = logEndOffset;
+            LogSegment[] snapshot = segments;
+            int low = 0, high = snapshot.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (snapshot[mid].maxTimestamp < timestamp)
+                    low = mid + 1;
+                else
+                    high = mid;
+            }
+            if (low == snapshot.length)
+                return end;
+
+            LogSegment segment = snapshot[low];
+            // the search reads timestamps from the buffer, which may have been reclaimed since
+            if (!segment.retain())
+                continue;
+            try {
+                int index = segment.indexForTime(timestamp);
+                int offset = index < segment.count ? segment.offsetAt(index) : segment.endOffset;
+                return Math.min(offset, end);
+            } finally {
+                segment.release();
+            }
+        }
+    }
+
+    void read(int offset, int maxEvents, List<Event> batch) {
+        RecordView view = new RecordView();
+        int end = Math.min(logEndOffset, offset + maxEvents);
+        try {
+            for (int i=offset; i<end && view(i, view) && view.offset() < end; i=view.offset()+1) {
+                batch.add(view.toEvent());
+            }
+        } finally {
+            view.release();
+        }
+    }
+
+    /**
+     * The first segment still covering offsets at or after the given one.
+     */
+    LogSegment segmentFor(int offset) {
+        LogSegment[] snapshot = segments;
+        int low = 0, high = snapshot.length - 1;
+        LogSegment found = null;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            LogSegment segment = snapshot[mid];
+            if (segment.endOffset > offset) {
+                found = segment;
+                high = mid - 1;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return found;
     }
 }
 
+/**
+ * Each partition of the topic is owned by exactly one member of the group; membership changes
+ * reassign partitions round-robin. Offsets belong to the group, so a partition that moves to a new
+ * member continues from the last committed offset.
+ */
+class ConsumerGroup {
+    private static final int DEFAULT_MAX_IN_FLIGHT = 100;
+
+    String id;
+    DeliveryMode mode;
+    Map<String, ISubscriber> members;
+    Subscription[] subscriptions;
+    volatile RetryPolicy retryPolicy;
+    int generation;
+
+    ConsumerGroup(String id, Topic topic, DeliveryMode mode, IOffsetStore offsetStore) {
+        this.id = id;
+        this.mode = mode;
+        members = new TreeMap<>();
+        retryPolicy = new RetryPolicy();
+        subscriptions = new Subscription[topic.partitions.length];
+        for (int i=0; i<topic.partitions.length; i++) {
+            String storeKey = topic.name + "/" + id + "/" + i;
+            Integer committed = offsetStore.lookup(storeKey);
+            subscriptions[i] = new Subscription(this, topic.partitions[i], storeKey, topic.id + "-" + i + "-" + id,
+                    committed != null ? committed : topic.partitions[i].logEndOffset(), DEFAULT_MAX_IN_FLIGHT);
+        }
+    }
+
+    void setMaxInFlight(int maxInFlight) {
+        for (Subscription subscription : subscriptions) {
+            subscription.maxInFlight = maxInFlight;
+        }
+    }
+
+    /**
+     * Returns true if the subscriber is the group's first member.
+     */
+    synchronized boolean join(ISubscriber subscriber) {
+        boolean first = members.isEmpty();
+        members.put(subscriber.getId(), subscriber);
+        rebalance();
+        return first;
+    }
+
+    synchronized boolean leave(String subscriberId) {
+        if (members.remove(subscriberId) == null)
+            return false;
+        rebalance();
+        return true;
+    }
+
+    synchronized boolean isEmpty() {
+        return members.isEmpty();
+    }
+
+    synchronized List<Subscription> assignedTo(String subscriberId) {
+        List<Subscription> assigned = new ArrayList<>();
+        for (Subscription subscription : subscriptions) {
+            if (subscription.subscriber != null && Objects.equals(subscription.subscriber.getId(), subscriberId))
+                assigned.add(subscription);
+        }
+        return assigned;
+    }
+
+    /**
+     * Only the first members in id order can own a partition, so a large group is not copied to
+     * assign a handful of partitions.
+     */
+    private void rebalance() {
+        generation++;
+        Iterator<ISubscriber> owners = members.values().iterator();
+        for (Subscription subscription : subscriptions) {
+            if (!owners.hasNext())
+                owners = members.values().iterator();
+            subscription.assign(owners.hasNext() ? owners.next() : null);
+        }
+    }
+}
+
+/**
+ * A group's cursor on one partition. position is the next offset to hand out, offset is the last
+ * committed one; a new group resumes from the offset store, or starts at the end of the log. At most
+ * maxInFlight events may be handed out ahead of the committed offset, and the subscriber earns those
+ * credits back by committing.
+ */
 class Subscription {
+    ConsumerGroup group;
+    Partition partition;
     AtomicInteger offset;
-    ISubscriber subscriber;
+    volatile int position;
+    volatile int maxInFlight;
+    volatile DeliveryGuarantee guarantee;
+    String storeKey;
+    String deliveryKey;
+    Mailbox mailbox;
+    volatile ISubscriber subscriber;
+    AtomicBoolean scheduled;
+    RecordView view;
+    int slot;
+    private final PriorityQueue<Integer> retrying;
+
+    Subscription(ConsumerGroup group, Partition partition, String storeKey, String deliveryKey, int offset,
+                 int maxInFlight) {
+        this.group = group;
+        this.partition = partition;
+        this.storeKey = storeKey;
+        this.deliveryKey = deliveryKey;
+        this.mailbox = new Mailbox();
+        this.offset = new AtomicInteger(offset);
+        this.position = offset;
+        this.maxInFlight = maxInFlight;
+        this.guarantee = DeliveryGuarantee.AT_LEAST_ONCE;
+        this.scheduled = new AtomicBoolean(false);
+        this.view = new RecordView();
+        this.slot = -1;
+        this.retrying = new PriorityQueue<>();
+    }
+
+    /**
+     * Hands out up to maxEvents offsets starting at from, bounded by the remaining credits. Returns 0
+     * if the position has moved since the caller read it.
+     */
+    synchronized int reserve(int from, int maxEvents) {
+        skipDeleted();
+        if (position != from)
+            return 0;
+        int credits = maxInFlight - (position - offset.get());
+        int count = Math.min(Math.min(maxEvents, credits), partition.logEndOffset() - position);
+        if (count <= 0)
+            return 0;
+        position += count;
+        return count;
+    }
+
+    /**
+     * Gives back the offsets [from, end) reserved but never handed out, unless the cursor has been
+     * moved since.
+     */
+    synchronized void unreserve(int from, int end) {
+        if (position == end)
+            seek(from);
+    }
+
+    synchronized int fetch(List<Event> batch, int maxEvents) {
+        skipDeleted();
+        int from = position;
+        int count = reserve(from, maxEvents);
+        partition.read(from, count, batch);
+        return count;
+    }
+
+    synchronized void acknowledge(int nextOffset) {
+        offset.set(nextOffset);
+    }
+
+    synchronized int commit() {
+        offset.set(position);
+        return position;
+    }
 
-    Subscription(ISubscriber subscriber) {
-        this.offset = new AtomicInteger(0);
+    synchronized void seek(int offset) {
+        this.offset.set(offset);
+        this.position = offset;
+    }
+
+    synchronized void assign(ISubscriber subscriber) {
+        if (this.subscriber != subscriber)
+            position = offset.get();
         this.subscriber = subscriber;
     }
+
+    synchronized void retrying(int offset) {
+        retrying.add(offset);
+    }
+
+    synchronized void retried(int offset) {
+        retrying.remove(offset);
+    }
+
+    /**
+     * The offset that is safe to commit: events waiting for a retry have been acknowledged so credits
+     * keep flowing, but a restart must still deliver them.
+     */
+    synchronized int committable() {
+        Integer oldest = retrying.peek();
+        return oldest == null ? offset.get() : Math.min(oldest, offset.get());
+    }
+
+    synchronized boolean hasMore() {
+        return position < partition.logEndOffset();
+    }
+
+    int lag() {
+        return partition.logEndOffset() - Math.max(offset.get(), partition.logStartOffset());
+    }
+
+    /**
+     * Retention may delete segments this cursor has not reached; it resumes from the oldest record left.
+     */
+    private void skipDeleted() {
+        int logStartOffset = partition.logStartOffset();
+        if (position < logStartOffset)
+            position = logStartOffset;
+        if (offset.get() < logStartOffset)
+            offset.set(logStartOffset);
+    }
 }
 
 interface ISubscriber {
@@ -147,6 +1205,13 @@ interface ISubscriber {
     void consume(Event event);
 }
 
+/**
+ * Push subscribers implementing this receive a view over the stored record instead of a new Event.
+ */
+interface IRecordSubscriber extends ISubscriber {
+    void consume(RecordView record);
+}
+
 class TestSubscriber implements ISubscriber {
 
     String id;
@@ -168,6 +1233,21 @@ class TestSubscriber implements ISubscriber {
     }
 }
 
+class FailingSubscriber extends TestSubscriber {
+    static final String POISON = "poison";
+
+    FailingSubscriber(final String id, final String name) {
+        super(id, name);
+    }
+
+    @Override
+    public void consume(Event event) {
+        if (POISON.equals(event.value))
+            throw new RuntimeException("Cannot process " + event.id);
+        super.consume(event);
+    }
+}
+
 class HashBasedExecutor {
     private ExecutorService[] executorServices;
 
@@ -179,6 +1259,30 @@ class HashBasedExecutor {
     }
 
     public CompletableFuture<Void> runAsync(final String key, final Runnable runnable) {
-        return CompletableFuture.runAsync(runnable, executorServices[Math.abs(key.hashCode())%executorServices.length]);
+        return runAsync(indexFor(key), runnable);
+    }
+
+    public CompletableFuture<Void> runAsync(final int index, final Runnable runnable) {
+        return CompletableFuture.runAsync(runnable, executorServices[index]);
+    }
+
+    public int indexFor(final String key) {
+        return Math.abs(key.hashCode())%executorServices.length;
+    }
+
+    public void shutdown() {
+        for (ExecutorService executorService : executorServices) {
+            executorService.shutdown();
+        }
+    }
+
+    public boolean awaitTermination(final long timeoutInMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutInMs;
+        for (ExecutorService executorService : executorServices) {
+            long remaining = Math.max(0, deadline - System.currentTimeMillis());
+            if (!executorService.awaitTermination(remaining, TimeUnit.MILLISECONDS))
+                return false;
+        }
+        return true;
     }
 }
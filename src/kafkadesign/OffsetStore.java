@@ -0,0 +1,215 @@
+package kafkadesign;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Committed consumer offsets keyed by topic name, group and partition, so they outlive topic ids.
+ */
+interface IOffsetStore {
+    Integer lookup(String key);
+    CompletableFuture<Void> commit(String key, int offset);
+    void close();
+}
+
+class InMemoryOffsetStore implements IOffsetStore {
+
+    private final Map<String, Integer> offsets = new ConcurrentHashMap<>();
+
+    @Override
+    public Integer lookup(String key) {
+        return offsets.get(key);
+    }
+
+    @Override
+    public CompletableFuture<Void> commit(String key, int offset) {
+        offsets.put(key, offset);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public void close() {
+    }
+}
+
+/**
+ * Append-only log of (key, offset) records. Commits are group-committed: whatever accumulated while
+ * the previous write was in flight is written and forced to disk together, keeping only the latest
+ * offset per key, and the returned futures complete once it is durable. When the log holds many more
+ * records than keys it is rewritten as a snapshot, so loading it on startup stays proportional to the
+ * number of groups rather than the number of commits ever made.
+ * Record: keyLength(2) key offset(4).
+ */
+class FileOffsetStore implements IOffsetStore {
+
+    private static final int MIN_RECORDS_BEFORE_COMPACTION = 10_000;
+    private static final int COMPACTION_RATIO = 4;
+
+    private final Path path;
+    private final Map<String, Integer> offsets;
+    private final ExecutorService flusher;
+    private Map<String, Integer> pending;
+    private List<CompletableFuture<Void>> waiting;
+    private boolean flushScheduled;
+    private boolean closed;
+    private FileChannel channel;
+    private int records;
+
+    FileOffsetStore(Path path) {
+        this.path = path;
+        this.offsets = new ConcurrentHashMap<>();
+        this.flusher = Executors.newSingleThreadExecutor();
+        this.pending = new HashMap<>();
+        this.waiting = new ArrayList<>();
+        try {
+            long validLength = load();
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            // drop a record torn by a crash mid-write before appending after it
+            channel.truncate(validLength);
+            channel.position(validLength);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public synchronized Integer lookup(String key) {
+        Integer offset = pending.get(key);
+        return offset != null ? offset : offsets.get(key);
+    }
+
+    @Override
+    public synchronized CompletableFuture<Void> commit(String key, int offset) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        if (closed) {
+            future.completeExceptionally(new RuntimeException("Offset store is closed"));
+            return future;
+        }
+        pending.put(key, offset);
+        waiting.add(future);
+        if (!flushScheduled) {
+            flushScheduled = true;
+            flusher.execute(this::flush);
+        }
+        return future;
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            // commits made up to here are written by the last flush
+            closed = true;
+        }
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void flush() {
+        Map<String, Integer> batch;
+        List<CompletableFuture<Void>> futures;
+        synchronized (this) {
+            batch = pending;
+            futures = waiting;
+            pending = new HashMap<>();
+            waiting = new ArrayList<>();
+            flushScheduled = false;
+        }
+        if (batch.isEmpty())
+            return;
+
+        try {
+            write(channel, encode(batch));
+            channel.force(false);
+            offsets.putAll(batch);
+            records += batch.size();
+            if (records >= MIN_RECORDS_BEFORE_COMPACTION && records >= COMPACTION_RATIO * offsets.size())
+                compact();
+            futures.forEach(future -> future.complete(null));
+        } catch (IOException e) {
+            futures.forEach(future -> future.completeExceptionally(e));
+        }
+    }
+
+    private void compact() throws IOException {
+        Path snapshot = path.resolveSibling(path.getFileName() + ".snapshot");
+        try (FileChannel out = FileChannel.open(snapshot, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            write(out, encode(offsets));
+            out.force(false);
+        }
+        channel.close();
+        Files.move(snapshot, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        records = offsets.size();
+    }
+
+    private long load() throws IOException {
+        if (!Files.exists(path))
+            return 0;
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+        while (buffer.remaining() >= 2) {
+            int start = buffer.position();
+            int keyLength = buffer.getShort();
+            if (keyLength < 0 || buffer.remaining() < keyLength + 4) {
+                buffer.position(start);
+                break;
+            }
+            byte[] key = new byte[keyLength];
+            buffer.get(key);
+            offsets.put(new String(key, StandardCharsets.UTF_8), buffer.getInt());
+            records++;
+        }
+        return buffer.position();
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static ByteBuffer encode(Map<String, Integer> batch) {
+        List<byte[]> keys = new ArrayList<>(batch.size());
+        List<Integer> values = new ArrayList<>(batch.size());
+        int size = 0;
+        for (Map.Entry<String, Integer> entry : batch.entrySet()) {
+            byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            keys.add(key);
+            values.add(entry.getValue());
+            size += 2 + key.length + 4;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (int i=0; i<keys.size(); i++) {
+            buffer.putShort((short) keys.get(i).length);
+            buffer.put(keys.get(i));
+            buffer.putInt(values.get(i));
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,141 @@
+package kafkadesign;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Accumulates events per topic and hands them to {@link MessageQueue#publishAll} as one append once
+ * batchSize events are waiting or the oldest one has waited lingerInMs, whichever happens first.
+ * Batches are handed over under the producer's monitor, in the order they were closed, so events of
+ * one key are appended in the order they were sent whichever thread closes the batch.
+ */
+class Producer {
+
+    private final MessageQueue messageQueue;
+    private final int batchSize;
+    private final long lingerInMs;
+    private final Map<String, ProducerBatch> batches;
+    private final ScheduledExecutorService lingerTimer;
+
+    Producer(final MessageQueue messageQueue, final int batchSize, final long lingerInMs) {
+        if (batchSize <= 0 || lingerInMs < 0)
+            throw new RuntimeException("Invalid producer config");
+        this.messageQueue = messageQueue;
+        this.batchSize = batchSize;
+        this.lingerInMs = lingerInMs;
+        this.batches = new HashMap<>();
+        this.lingerTimer = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    /**
+     * The returned future completes when the batch holding this event has been appended.
+     */
+    public CompletableFuture<Void> send(final String topicId, final Event event) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        ProducerBatch full = null;
+        CompletableFuture<Void> append = null;
+
+        synchronized (this) {
+            ProducerBatch batch = batches.get(topicId);
+            if (batch == null) {
+                batch = new ProducerBatch(batchSize);
+                batches.put(topicId, batch);
+                if (batchSize > 1) {
+                    ProducerBatch lingering = batch;
+                    batch.lingerTask = lingerTimer.schedule(() -> flush(topicId, lingering), lingerInMs,
+                            TimeUnit.MILLISECONDS);
+                }
+            }
+            batch.events.add(event);
+            batch.futures.add(future);
+
+            if (batch.events.size() >= batchSize) {
+                batches.remove(topicId);
+                full = batch;
+                append = publish(topicId, full);
+            }
+        }
+
+        if (full != null) {
+            if (full.lingerTask != null)
+                full.lingerTask.cancel(false);
+            completeWhenAppended(full, append);
+        }
+        return future;
+    }
+
+    public void flush() {
+        List<String> topicIds;
+        synchronized (this) {
+            topicIds = new ArrayList<>(batches.keySet());
+        }
+        for (String topicId : topicIds) {
+            ProducerBatch batch;
+            synchronized (this) {
+                batch = batches.get(topicId);
+            }
+            if (batch != null)
+                flush(topicId, batch);
+        }
+    }
+
+    public void close() {
+        flush();
+        lingerTimer.shutdown();
+    }
+
+    private void flush(final String topicId, final ProducerBatch batch) {
+        CompletableFuture<Void> append;
+        synchronized (this) {
+            if (batches.get(topicId) != batch)
+                return;
+            batches.remove(topicId);
+            append = publish(topicId, batch);
+        }
+        if (batch.lingerTask != null)
+            batch.lingerTask.cancel(false);
+        completeWhenAppended(batch, append);
+    }
+
+    /**
+     * Only queues the append, so it is cheap enough to do while holding the monitor.
+     */
+    private CompletableFuture<Void> publish(final String topicId, final ProducerBatch batch) {
+        try {
+            return messageQueue.publishAll(topicId, batch.events);
+        } catch (RuntimeException e) {
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    private void completeWhenAppended(final ProducerBatch batch, final CompletableFuture<Void> append) {
+        append.whenComplete((ignored, error) -> {
+            for (CompletableFuture<Void> future : batch.futures) {
+                if (error == null)
+                    future.complete(null);
+                else
+                    future.completeExceptionally(error);
+            }
+        });
+    }
+}
+
+class ProducerBatch {
+    List<Event> events;
+    List<CompletableFuture<Void>> futures;
+    ScheduledFuture<?> lingerTask;
+
+    ProducerBatch(int batchSize) {
+        this.events = new ArrayList<>(batchSize);
+        this.futures = new ArrayList<>(batchSize);
+    }
+}
@@ -0,0 +1,73 @@
+package kafkadesign;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/***
+ * Publish throughput of MessageQueue.publish against the batching Producer at several batch sizes.
+ * Run with: java kafkadesign.ProducerBenchmark [eventsPerRun]
+ */
+public class ProducerBenchmark {
+
+    private static final int PARTITIONS = 4;
+    private static final long LINGER_IN_MS = 5;
+    private static final int[] BATCH_SIZES = {1, 10, 100, 1000};
+
+    public static void main(String[] args) {
+        int nEvents = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        Event[] events = new Event[nEvents];
+        for (int i=0; i<nEvents; i++) {
+            events[i] = new Event("event-" + i, "key-" + (i % 1024), "value-" + i);
+        }
+
+        // warm up the JIT before measuring
+        runPublish(events);
+        runProducer(events, 100);
+
+        System.out.printf("%-22s %12s %14s%n", "mode", "events", "events/sec");
+        report("publish", nEvents, runPublish(events));
+        for (int batchSize : BATCH_SIZES) {
+            report("producer batch=" + batchSize, nEvents, runProducer(events, batchSize));
+        }
+    }
+
+    private static long runPublish(Event[] events) {
+        MessageQueue mq = new MessageQueue();
+        String topicId = mq.addTopic("bench", PARTITIONS);
+
+        long start = System.nanoTime();
+        List<CompletableFuture<Void>> futures = new ArrayList<>(events.length);
+        for (Event event : events) {
+            futures.add(mq.publish(topicId, event));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+        long elapsed = System.nanoTime() - start;
+
+        mq.shutdown();
+        return elapsed;
+    }
+
+    private static long runProducer(Event[] events, int batchSize) {
+        MessageQueue mq = new MessageQueue();
+        String topicId = mq.addTopic("bench", PARTITIONS);
+        Producer producer = new Producer(mq, batchSize, LINGER_IN_MS);
+
+        long start = System.nanoTime();
+        List<CompletableFuture<Void>> futures = new ArrayList<>(events.length);
+        for (Event event : events) {
+            futures.add(producer.send(topicId, event));
+        }
+        producer.flush();
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+        long elapsed = System.nanoTime() - start;
+
+        producer.close();
+        mq.shutdown();
+        return elapsed;
+    }
+
+    private static void report(String mode, int nEvents, long elapsedNanos) {
+        System.out.printf("%-22s %12d %14.0f%n", mode, nEvents, nEvents * 1e9 / elapsedNanos);
+    }
+}
@@ -0,0 +1,121 @@
+package kafkadesign;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Indexes a topic's consumer groups by member and its push subscriptions by partition, so finding a
+ * subscriber's subscriptions does not scan every group and a publish walks one flat array. A group's
+ * subscriptions enter the partition arrays when it gets its first member and leave them when it loses
+ * its last, so groups nobody reads from any more cost a publish nothing. Membership changes are
+ * serialised here; lookups and fan-out never take the lock.
+ */
+class SubscriptionRegistry {
+
+    private final FanOut[] fanOuts;
+    private final Map<String, Set<ConsumerGroup>> groupsBySubscriber;
+
+    SubscriptionRegistry(int nPartitions) {
+        fanOuts = new FanOut[nPartitions];
+        for (int i=0; i<nPartitions; i++) {
+            fanOuts[i] = new FanOut();
+        }
+        groupsBySubscriber = new ConcurrentHashMap<>();
+    }
+
+    synchronized void join(ConsumerGroup group, ISubscriber subscriber) {
+        boolean firstMember = group.join(subscriber);
+        groupsBySubscriber.computeIfAbsent(subscriber.getId(), id -> ConcurrentHashMap.newKeySet()).add(group);
+        if (firstMember && group.mode == DeliveryMode.PUSH) {
+            for (Subscription subscription : group.subscriptions) {
+                fanOuts[subscription.partition.index].add(subscription);
+            }
+        }
+    }
+
+    /**
+     * Returns the subscriptions that were moved to fill the slots freed in the fan-out arrays. A
+     * publish walking an array at the same time may have skipped them, so the caller wakes them.
+     */
+    synchronized List<Subscription> leave(ConsumerGroup group, String subscriberId) {
+        List<Subscription> moved = new ArrayList<>();
+        if (!group.leave(subscriberId))
+            return moved;
+        Set<ConsumerGroup> groups = groupsBySubscriber.get(subscriberId);
+        if (groups != null) {
+            groups.remove(group);
+            if (groups.isEmpty())
+                groupsBySubscriber.remove(subscriberId);
+        }
+        if (group.isEmpty() && group.mode == DeliveryMode.PUSH) {
+            for (Subscription subscription : group.subscriptions) {
+                Subscription filler = fanOuts[subscription.partition.index].remove(subscription);
+                if (filler != null)
+                    moved.add(filler);
+            }
+        }
+        return moved;
+    }
+
+    Collection<ConsumerGroup> groupsOf(String subscriberId) {
+        return groupsBySubscriber.getOrDefault(subscriberId, Collections.emptySet());
+    }
+
+    FanOut fanOut(int partition) {
+        return fanOuts[partition];
+    }
+}
+
+/**
+ * The push subscriptions of one partition across all groups. Adding appends, removing swaps the last
+ * entry into the freed slot, both O(1) and only under the registry's lock. Readers see the array as
+ * of some recent point; a removed entry may still be visited once, which a drain tolerates.
+ */
+class FanOut {
+
+    private volatile Subscription[] subscriptions = new Subscription[8];
+    private volatile int size;
+
+    void add(Subscription subscription) {
+        if (size == subscriptions.length)
+            subscriptions = Arrays.copyOf(subscriptions, size * 2);
+        subscription.slot = size;
+        subscriptions[size] = subscription;
+        size = size + 1;
+    }
+
+    /**
+     * Returns the subscription moved into the freed slot, or null if the removed one was last.
+     */
+    Subscription remove(Subscription subscription) {
+        int slot = subscription.slot;
+        if (slot < 0)
+            return null;
+        int last = size - 1;
+        Subscription filler = subscriptions[last];
+        subscriptions[slot] = filler;
+        filler.slot = slot;
+        subscriptions[last] = null;
+        size = last;
+        subscription.slot = -1;
+        return filler == subscription ? null : filler;
+    }
+
+    void forEach(Consumer<Subscription> action) {
+        // size first: it is written after the array, so the array read next holds every counted entry
+        int n = size;
+        Subscription[] snapshot = subscriptions;
+        for (int i=0; i<n; i++) {
+            Subscription subscription = snapshot[i];
+            if (subscription != null)
+                action.accept(subscription);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package practice.messagequeue;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/***
+ * Runs kafkadesign.MessageQueueBenchmark's matrix against this design, so that results of the two
+ * designs share one harness and one set of columns.
+ * Run with: java practice.messagequeue.MessageQueueBenchmark [eventsPerRun] [results.csv|results.json]
+ */
+public class MessageQueueBenchmark {
+
+    public static void main(String[] args) throws InterruptedException, IOException {
+        kafkadesign.MessageQueueBenchmark.run(args, Collections.singletonList(PracticeQueueUnderTest::new));
+        // the queue's executors are never shut down
+        System.exit(0);
+    }
+}
+
+/**
+ * The queue is a singleton, so every run adds fresh topics and subscribers to the same instance.
+ * Events have no key.
+ */
+class PracticeQueueUnderTest implements kafkadesign.MessageQueueBenchmark.IQueueUnderTest {
+
+    private final MessageQueue mq = MessageQueue.getInstance();
+
+    @Override
+    public String design() {
+        return "practice";
+    }
+
+    @Override
+    public String engine() {
+        return "hashed";
+    }
+
+    @Override
+    public String addTopic(String name) {
+        return mq.addTopic(name);
+    }
+
+    @Override
+    public String addSubscriber(String name, Consumer<String> consumer) {
+        String id = name + "-" + UUID.randomUUID();
+        return mq.addSubscriber(new ISubscriber() {
+            @Override
+            public String getId() {
+                return id;
+            }
+
+            @Override
+            public void consume(Event event) {
+                consumer.accept(event.content);
+            }
+        });
+    }
+
+    @Override
+    public void subscribe(String topicId, String subscriberId) {
+        mq.subscribe(topicId, subscriberId);
+    }
+
+    @Override
+    public CompletableFuture<Void> publish(String topicId, String eventId, String key, String value) {
+        return mq.publish(topicId, new Event(eventId, value));
+    }
+
+    @Override
+    public void replay(String topicId, String subscriberId) {
+        mq.replay(topicId, subscriberId, 0);
+    }
+
+    @Override
+    public void shutdown() {
+    }
+}
@@ -57,7 +57,10 @@ class MessageQueue {
     }
 
     public String addSubscriber(final String name) {
-        ISubscriber subscriber = new TestSubscriber(UUID.randomUUID().toString(), name);
+        return addSubscriber(new TestSubscriber(UUID.randomUUID().toString(), name));
+    }
+
+    public String addSubscriber(final ISubscriber subscriber) {
         subscriberMap.put(subscriber.getId(), subscriber);
         return subscriber.getId();
     }